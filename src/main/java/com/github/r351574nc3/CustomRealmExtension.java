@@ -25,6 +25,8 @@ import com.github.r351574nc3.realm.CustomCachingRealm;
 import com.github.r351574nc3.realm.CustomCachingRealmFactory;
 import com.github.r351574nc3.realm.CustomRealm;
 import com.github.r351574nc3.realm.CustomRealmFactory;
+import com.github.r351574nc3.realm.FailureTracker;
+import com.github.r351574nc3.realm.RetryBudget;
 import org.elasticsearch.watcher.ResourceWatcherService;
 import org.elasticsearch.xpack.extensions.XPackExtension;
 import org.elasticsearch.xpack.security.authc.AuthenticationFailureHandler;
@@ -40,6 +42,16 @@ import java.util.Map;
  */
 public class CustomRealmExtension extends XPackExtension {
 
+	/*
+	 * Authentication failures are tracked across all realms of this extension and the failure handler
+	 */
+	private final FailureTracker failureTracker = FailureTracker.fromEnvironment(System.getenv());
+
+	/*
+	 * Retries of requests to the oauth server are budgeted across all realms of this extension
+	 */
+	private final RetryBudget retryBudget = RetryBudget.fromEnvironment(System.getenv());
+
 	@Override
 	public String name() {
 		return "kibana";
@@ -70,8 +82,10 @@ public class CustomRealmExtension extends XPackExtension {
 	@Override
 	public Map<String, Factory> getRealms(ResourceWatcherService resourceWatcherService) {
 		return new MapBuilder<String, Factory>()
-				.put(CustomRealm.TYPE, new CustomRealmFactory())
-				.put(CustomCachingRealm.TYPE, new CustomCachingRealmFactory()).immutableMap();
+				.put(CustomRealm.TYPE, new CustomRealmFactory(resourceWatcherService, failureTracker, retryBudget))
+				.put(CustomCachingRealm.TYPE, new CustomCachingRealmFactory(resourceWatcherService, failureTracker,
+						retryBudget))
+				.immutableMap();
 	}
 
 	/**
@@ -82,6 +96,6 @@ public class CustomRealmExtension extends XPackExtension {
 	 */
 	@Override
 	public AuthenticationFailureHandler getAuthenticationFailureHandler() {
-		return new CustomAuthenticationFailureHandler();
+		return new CustomAuthenticationFailureHandler(failureTracker);
 	}
 }
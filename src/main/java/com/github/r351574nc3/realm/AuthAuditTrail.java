@@ -0,0 +1,367 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.elasticsearch.xpack.security.authc.support.UsernamePasswordToken;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A structured stream of authentication events written to a local file off the request path. Request threads publish
+ * fixed size events into a bounded, lock free ring buffer of preallocated slots; a background thread drains the buffer
+ * in batches and appends one JSON line per event to a size rotated file. When the buffer is full the event is dropped
+ * and counted rather than blocking the request. The writer thread sleeps while the buffer is empty and is woken by the
+ * next event. Principals are recorded as a keyed hash only, so they cannot be matched against a list of known principals
+ * without the key.
+ *
+ * The writer can also record a binary trace of the events for the offline {@link CacheSimulator}. The trace starts with
+ * the 8 byte {@link #TRACE_MAGIC} followed by one {@link #TRACE_RECORD_BYTES} byte big endian record per event: the
+ * timestamp in milliseconds since the epoch, the principal hash, the credential hash, the outcome ordinal and the
+ * status. Principals and credentials are hashed with HMAC-SHA256 under a random key that is never written, so the
+ * trace can tell equal values apart but cannot be matched against known values. Recording stops when the trace reaches its maximum size.
+ *
+ * Configured through the realm settings:
+ * <ul>
+ * <li><code>audit.enabled</code> whether events are recorded (default false)</li>
+ * <li><code>audit.hash_key</code> key of the principal hashes, so that they compare across restarts and nodes (default
+ * a random key per start)</li>
+ * <li><code>audit.buffer_size</code> number of buffered events (default 8192)</li>
+ * <li><code>audit.file.max_size</code> size at which the file is rotated (default 64mb)</li>
+ * <li><code>audit.file.max_files</code> number of rotated files kept (default 5)</li>
+ * <li><code>audit.trace.enabled</code> whether the binary trace is recorded (default false)</li>
+ * <li><code>audit.trace.max_size</code> size at which the trace stops recording (default 1gb)</li>
+ * </ul>
+ * The files are written to the Elasticsearch logs directory as <code>&lt;realm name&gt;_auth_audit.json</code> and
+ * <code>&lt;realm name&gt;_auth_trace.bin</code>.
+ */
+public class AuthAuditTrail {
+
+	private static final Logger log = Loggers.getLogger(AuthAuditTrail.class);
+
+	public static final String ENABLED_SETTING = "audit.enabled";
+	public static final String HASH_KEY_SETTING = "audit.hash_key";
+	public static final String BUFFER_SIZE_SETTING = "audit.buffer_size";
+	public static final String MAX_FILE_SIZE_SETTING = "audit.file.max_size";
+	public static final String MAX_FILES_SETTING = "audit.file.max_files";
+	public static final String TRACE_ENABLED_SETTING = "audit.trace.enabled";
+	public static final String TRACE_MAX_SIZE_SETTING = "audit.trace.max_size";
+
+	static final long TRACE_MAGIC = 0x4352545241434531L; // "CRTRACE1"
+	static final int TRACE_RECORD_BYTES = 27;
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	private static final ByteSizeValue DEFAULT_MAX_FILE_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+	private static final int DEFAULT_MAX_FILES = 5;
+	private static final ByteSizeValue DEFAULT_TRACE_MAX_SIZE = new ByteSizeValue(1, ByteSizeUnit.GB);
+	private static final int MAX_BATCH = 512;
+
+	/**
+	 * The outcome of an authentication attempt
+	 */
+	public enum Outcome {
+		SUCCESS, CACHE_HIT, REVALIDATED, REJECTED, MALFORMED, REVOKED, PENALIZED, ERROR, SHED;
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	static final Outcome[] OUTCOMES = Outcome.values();
+
+	private final String realm;
+	private final boolean enabled;
+	private final boolean trace;
+	private final int mask;
+	private final AtomicLongArray sequences;
+	private final long[] timestamps;
+	private final long[] principals;
+	private final long[] credentials;
+	private final byte[] outcomes;
+	private final int[] statuses;
+	private final AtomicLong tail = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	// set by the writer thread before it sleeps on an empty buffer
+	private volatile boolean idle;
+	private volatile Thread writer;
+
+	private final Path file;
+	private final long maxFileSize;
+	private final int maxFiles;
+	private final Path traceFile;
+	private final long traceMaxSize;
+	// keyed at random and never written, unlike the principal hash of the audit file
+	private final KeyedHash traceHash = KeyedHash.of(null);
+	private final KeyedHash principalHash;
+	private long head;
+	private OutputStream out;
+	private long fileSize;
+	private OutputStream traceOut;
+	private long traceSize;
+
+	AuthAuditTrail(String realm, Path file, Path traceFile, Settings settings) {
+		this.realm = realm;
+		this.file = file;
+		this.traceFile = traceFile;
+		this.enabled = settings.getAsBoolean(ENABLED_SETTING, false);
+		this.trace = settings.getAsBoolean(TRACE_ENABLED_SETTING, false);
+		this.maxFileSize = settings.getAsBytesSize(MAX_FILE_SIZE_SETTING, DEFAULT_MAX_FILE_SIZE).getBytes();
+		this.maxFiles = settings.getAsInt(MAX_FILES_SETTING, DEFAULT_MAX_FILES);
+		this.traceMaxSize = settings.getAsBytesSize(TRACE_MAX_SIZE_SETTING, DEFAULT_TRACE_MAX_SIZE).getBytes();
+		this.principalHash = KeyedHash.of(settings.get(HASH_KEY_SETTING));
+
+		int capacity = 2;
+		final int bufferSize = settings.getAsInt(BUFFER_SIZE_SETTING, DEFAULT_BUFFER_SIZE);
+		while (capacity < bufferSize) {
+			capacity <<= 1;
+		}
+		this.mask = capacity - 1;
+		final int slots = enabled || trace ? capacity : 0;
+		this.sequences = new AtomicLongArray(slots);
+		this.timestamps = new long[slots];
+		this.principals = new long[slots];
+		this.credentials = new long[trace ? slots : 0];
+		this.outcomes = new byte[slots];
+		this.statuses = new int[slots];
+		for (int i = 0; i < sequences.length(); i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Creates the audit trail of a realm and starts its writer thread when enabled
+	 * @param config the configuration of the realm
+	 * @return the audit trail
+	 */
+	public static AuthAuditTrail create(final RealmConfig config) {
+		final Path file = config.env().logsFile().resolve(config.name() + "_auth_audit.json");
+		final Path traceFile = config.env().logsFile().resolve(config.name() + "_auth_trace.bin");
+		final AuthAuditTrail trail = new AuthAuditTrail(config.name(), file, traceFile, config.settings());
+		if (trail.enabled || trail.trace) {
+			AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+				final Thread writer = new Thread(trail::run, "custom-realm-audit[" + config.name() + "]");
+				writer.setDaemon(true);
+				trail.writer = writer;
+				writer.start();
+				return null;
+			});
+		}
+		return trail;
+	}
+
+	/**
+	 * Publishes an authentication event without blocking
+	 * @param outcome the outcome of the attempt
+	 * @param token the token that attempted to authenticate
+	 * @param status the HTTP status returned by the oauth server, 0 if it was not contacted
+	 */
+	public void publish(final Outcome outcome, final UsernamePasswordToken token, final int status) {
+		if (!enabled && !trace) {
+			return;
+		}
+		long position = tail.get();
+		int index;
+		while (true) {
+			index = (int) position & mask;
+			final long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				dropped.increment();
+				return;
+			} else {
+				position = tail.get();
+			}
+		}
+		timestamps[index] = System.currentTimeMillis();
+		principals[index] = token.principal() == null ? 0 : Hashes.fnv64(token.principal());
+		if (trace) {
+			credentials[index] = Hashes.fnv64(token.credentials());
+		}
+		outcomes[index] = (byte) outcome.ordinal();
+		statuses[index] = status;
+		// a volatile write, so that the writer cannot be seen awake after it checked the slot and went to sleep
+		sequences.set(index, position + 1);
+		if (idle) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Returns the number of events written and dropped
+	 */
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("enabled", enabled);
+		stats.put("trace", trace && traceSize < traceMaxSize);
+		stats.put("written", written.sum());
+		stats.put("dropped", dropped.sum());
+		return stats;
+	}
+
+	private void run() {
+		final StringBuilder batch = new StringBuilder(MAX_BATCH * 128);
+		final ByteBuffer traceBatch = ByteBuffer.allocate(MAX_BATCH * TRACE_RECORD_BYTES);
+		while (true) {
+			try {
+				final int events = drain(batch, traceBatch);
+				if (events == 0) {
+					idle = true;
+					if (sequences.get((int) head & mask) != head + 1) {
+						LockSupport.park(this);
+					}
+					idle = false;
+					continue;
+				}
+				if (enabled) {
+					write(batch);
+				}
+				if (trace) {
+					writeTrace(traceBatch);
+				}
+				written.add(events);
+			} catch (Exception e) {
+				log.error("Unable to write the authentication audit trail to " + file, e);
+				closeQuietly();
+				LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+			}
+		}
+	}
+
+	/**
+	 * Moves up to {@link #MAX_BATCH} events from the ring buffer into the batch. Only called by the writer thread.
+	 */
+	private int drain(final StringBuilder batch, final ByteBuffer traceBatch) {
+		batch.setLength(0);
+		traceBatch.clear();
+		int events = 0;
+		while (events < MAX_BATCH) {
+			final int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) {
+				break;
+			}
+			if (enabled) {
+				batch.append("{\"@timestamp\":\"").append(Instant.ofEpochMilli(timestamps[index]))
+						.append("\",\"realm\":\"").append(realm)
+						.append("\",\"outcome\":\"").append(OUTCOMES[outcomes[index]].label)
+						.append("\",\"principal_hash\":\"").append(Long.toHexString(principalHash.apply(principals[index])))
+						.append("\",\"status\":").append(statuses[index])
+						.append("}\n");
+			}
+			if (trace) {
+				traceBatch.putLong(timestamps[index])
+						.putLong(traceHash.apply(principals[index]))
+						.putLong(traceHash.apply(credentials[index]))
+						.put(outcomes[index])
+						.putShort((short) statuses[index]);
+			}
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+			events++;
+		}
+		return events;
+	}
+
+	private void write(final CharSequence batch) throws IOException {
+		final byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+		if (out != null && fileSize + bytes.length > maxFileSize) {
+			rotate();
+		}
+		if (out == null) {
+			out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			fileSize = Files.size(file);
+		}
+		out.write(bytes);
+		out.flush();
+		fileSize += bytes.length;
+	}
+
+	private void writeTrace(final ByteBuffer traceBatch) throws IOException {
+		if (traceSize >= traceMaxSize) {
+			return;
+		}
+		if (traceOut == null) {
+			// every trace starts afresh as the key of its hashes is not kept
+			traceOut = Files.newOutputStream(traceFile, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			traceOut.write(ByteBuffer.allocate(8).putLong(TRACE_MAGIC).array());
+			traceSize = 8;
+		}
+		final int length = (int) Math.min(traceBatch.position(),
+				(traceMaxSize - traceSize) / TRACE_RECORD_BYTES * TRACE_RECORD_BYTES);
+		traceOut.write(traceBatch.array(), 0, length);
+		traceOut.flush();
+		traceSize += length;
+		if (length < traceBatch.position()) {
+			traceSize = traceMaxSize;
+			traceOut.close();
+			log.info("Authentication trace {} reached its maximum size", traceFile);
+		}
+	}
+
+	private void rotate() throws IOException {
+		closeQuietly();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			final Path source = file.resolveSibling(file.getFileName() + "." + i);
+			if (Files.exists(source)) {
+				Files.move(source, file.resolveSibling(file.getFileName() + "." + (i + 1)),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void closeQuietly() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.debug("Unable to close the authentication audit trail", e);
+			}
+			out = null;
+		}
+	}
+}
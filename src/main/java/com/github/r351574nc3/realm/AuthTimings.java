@@ -0,0 +1,238 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per phase latency tracing of authentications. The phases of an authentication are timed with
+ * {@link System#nanoTime()} into the {@link Trace} it carries along, from the thread that started it to the threads of
+ * the lanes that send its requests to the oauth server and complete it. The extraction of the token, which happens on
+ * the calling thread just before the authentication starts, is only counted towards the authentication of the realm that
+ * extracted it. When an authentication completes its phases are added to log2 bucketed histograms that are reported in
+ * the usage stats of the realm, and an authentication slower than the threshold writes one line with its phase
+ * breakdown and a keyed hash of its principal to the <code>com.github.r351574nc3.realm.AuthTimings.slowlog</code>
+ * logger.
+ *
+ * Configured through the realm settings:
+ * <ul>
+ * <li><code>trace.slow_threshold</code> duration above which an authentication is logged, -1 to disable (default 1s)</li>
+ * </ul>
+ */
+public class AuthTimings {
+
+	private static final Logger slowLog = Loggers.getLogger(AuthTimings.class.getName() + ".slowlog");
+
+	public static final String SLOW_THRESHOLD_SETTING = "trace.slow_threshold";
+
+	private static final TimeValue DEFAULT_SLOW_THRESHOLD = TimeValue.timeValueSeconds(1);
+
+	/**
+	 * The phases of an authentication
+	 */
+	public enum Phase {
+		/** extraction of the token from the request headers */
+		TOKEN,
+		/** lookup of the user cache */
+		CACHE,
+		/** connection checkout, TLS and the oauth server's time to respond, which the transport does not tell apart */
+		REQUEST,
+		/** parsing of the oauth server's JSON response */
+		PARSE,
+		/** building of the user and mapping of its roles */
+		BUILD;
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+	// histograms of the phases followed by the histogram of the whole authentication
+	private static final int TOTAL = PHASES.length;
+	// bucket i counts durations of less than 2^i microseconds, the last one everything longer
+	private static final int BUCKETS = 32;
+
+	private static final ThreadLocal<Extraction> EXTRACTION = ThreadLocal.withInitial(Extraction::new);
+
+	/**
+	 * The last token extraction on a thread, until an authentication of the realm that extracted it starts
+	 */
+	private static final class Extraction {
+		AuthTimings tokenOf;
+		long tokenNanos;
+	}
+
+	/**
+	 * The phases of one authentication. It is only used by one thread at a time: the handoff of the authentication to
+	 * another thread orders the phases recorded before it with those recorded after it.
+	 */
+	public static final class Trace {
+		private final long startNanos;
+		private final long[] phases = new long[PHASES.length];
+
+		Trace(long startNanos, long tokenNanos) {
+			this.startNanos = startNanos;
+			this.phases[Phase.TOKEN.ordinal()] = tokenNanos;
+		}
+
+		/**
+		 * Records the duration of a phase of the authentication
+		 * @param phase the phase
+		 * @param startNanos the {@link System#nanoTime()} the phase started at
+		 */
+		public void record(final Phase phase, final long startNanos) {
+			phases[phase.ordinal()] += System.nanoTime() - startNanos;
+		}
+
+		/**
+		 * Records the duration of a phase of the authentication
+		 * @param phase the phase
+		 * @param nanos the duration of the phase
+		 */
+		public void recordNanos(final Phase phase, final long nanos) {
+			phases[phase.ordinal()] += nanos;
+		}
+	}
+
+	private final String realm;
+	private final long slowThresholdNanos;
+	// only used by slow authentications, which lock it
+	private final KeyedHash principalHash;
+	private final AtomicLongArray counts = new AtomicLongArray((TOTAL + 1) * BUCKETS);
+	private final AtomicLongArray sums = new AtomicLongArray(TOTAL + 1);
+
+	AuthTimings(String realm, long slowThresholdNanos, KeyedHash principalHash) {
+		this.realm = realm;
+		this.slowThresholdNanos = slowThresholdNanos;
+		this.principalHash = principalHash;
+	}
+
+	/**
+	 * Creates the timings of a realm from its settings. Principals are hashed with the key of the audit trail.
+	 */
+	public static AuthTimings fromSettings(final String realm, final Settings settings) {
+		return new AuthTimings(realm, settings.getAsTime(SLOW_THRESHOLD_SETTING, DEFAULT_SLOW_THRESHOLD).nanos(),
+				KeyedHash.of(settings.get(AuthAuditTrail.HASH_KEY_SETTING)));
+	}
+
+	/**
+	 * Records the extraction of a token by the realm on the current thread. It is added to the
+	 * {@link Phase#TOKEN} phase of the next authentication this realm starts on the thread.
+	 * @param startNanos the {@link System#nanoTime()} the extraction started at
+	 */
+	public void recordToken(final long startNanos) {
+		final Extraction extraction = EXTRACTION.get();
+		extraction.tokenOf = this;
+		extraction.tokenNanos = System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Starts the timing of an authentication by the realm on the current thread
+	 * @return the trace to record the phases of the authentication in, wherever it continues
+	 */
+	public Trace start() {
+		final long startNanos = System.nanoTime();
+		final Extraction extraction = EXTRACTION.get();
+		final long tokenNanos = extraction.tokenOf == this ? extraction.tokenNanos : 0;
+		extraction.tokenOf = null;
+		return new Trace(startNanos, tokenNanos);
+	}
+
+	/**
+	 * Completes the timing of an authentication
+	 * @param trace the trace of the authentication
+	 * @param principal the principal that authenticated
+	 */
+	public void complete(final Trace trace, final String principal) {
+		final long[] phases = trace.phases;
+		final long took = System.nanoTime() - trace.startNanos + phases[Phase.TOKEN.ordinal()];
+		for (int phase = 0; phase < PHASES.length; phase++) {
+			if (phases[phase] > 0) {
+				add(phase, phases[phase]);
+			}
+		}
+		add(TOTAL, took);
+		if (slowThresholdNanos >= 0 && took > slowThresholdNanos && slowLog.isWarnEnabled()) {
+			final StringBuilder line = new StringBuilder(256);
+			line.append("{\"realm\":\"").append(realm)
+					.append("\",\"principal_hash\":\"").append(Long.toHexString(hash(principal)))
+					.append("\",\"took_micros\":").append(TimeUnit.NANOSECONDS.toMicros(took));
+			for (final Phase phase : PHASES) {
+				line.append(",\"").append(phase.label).append("_micros\":")
+						.append(TimeUnit.NANOSECONDS.toMicros(phases[phase.ordinal()]));
+			}
+			slowLog.warn(line.append('}').toString());
+		}
+	}
+
+	private long hash(final String principal) {
+		if (principal == null) {
+			return 0;
+		}
+		synchronized (principalHash) {
+			return principalHash.apply(Hashes.fnv64(principal));
+		}
+	}
+
+	/**
+	 * Returns the histograms of every phase and of whole authentications
+	 */
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		for (final Phase phase : PHASES) {
+			stats.put(phase.label, histogram(phase.ordinal()));
+		}
+		stats.put("total", histogram(TOTAL));
+		return stats;
+	}
+
+	private void add(final int histogram, final long nanos) {
+		final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		counts.incrementAndGet(histogram * BUCKETS + bucket);
+		sums.addAndGet(histogram, micros);
+	}
+
+	private Map<String, Object> histogram(final int histogram) {
+		final Map<String, Object> buckets = new HashMap<>();
+		long count = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			final long value = counts.get(histogram * BUCKETS + bucket);
+			if (value > 0) {
+				buckets.put(bucket == BUCKETS - 1 ? "+Inf" : Long.toString(1L << bucket), value);
+				count += value;
+			}
+		}
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("count", count);
+		stats.put("sum_micros", sums.get(histogram));
+		stats.put("lt_micros", buckets);
+		return stats;
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.common.SuppressForbidden;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Offline tool that replays an authentication trace recorded by the {@link AuthAuditTrail} against cache
+ * configurations, to size the cache of the {@link CustomCachingRealm} from real traffic. Every combination of the given
+ * eviction policies, sizes and times to live is simulated in a single pass over the trace and reported with its hit
+ * ratio, the rate of requests it would send to the oauth server and the memory its largest population would take.
+ * <pre>
+ * java -cp custom-realm.jar com.github.r351574nc3.realm.CacheSimulator realm1_auth_trace.bin \
+ *     --policies=lru,fifo,clock --sizes=1000,10000,100000 --ttls=5m,20m,1h --entry-bytes=1024
+ * </pre>
+ * Events that never reach the cache, such as malformed, revoked or penalized tokens and service accounts, are skipped.
+ * A lookup hits when the principal is cached with the same credential and has not expired; otherwise it is a request
+ * to the oauth server, whose result is cached when the trace shows the credential was valid. Memory is estimated as
+ * the peak number of entries times the size of an entry, which defaults to a typical cached user.
+ */
+@SuppressForbidden(reason = "command line tool that prints its report")
+public class CacheSimulator {
+
+	private static final long DEFAULT_ENTRY_BYTES = 1024;
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: CacheSimulator <trace file> [--policies=lru,fifo,clock] [--sizes=1000,10000]"
+					+ " [--ttls=5m,20m] [--entry-bytes=1024]");
+			System.exit(1);
+		}
+		final Map<String, String> options = new HashMap<>();
+		for (int i = 1; i < args.length; i++) {
+			final int separator = args[i].indexOf('=');
+			if (!args[i].startsWith("--") || separator < 0) {
+				throw new IllegalArgumentException("Invalid option [" + args[i] + "]");
+			}
+			options.put(args[i].substring(2, separator), args[i].substring(separator + 1));
+		}
+		final long entryBytes = options.containsKey("entry-bytes") ? Long.parseLong(options.get("entry-bytes"))
+				: DEFAULT_ENTRY_BYTES;
+
+		final List<Simulation> simulations = new ArrayList<>();
+		for (final String policy : options.getOrDefault("policies", "lru,fifo,clock").split(",")) {
+			for (final String size : options.getOrDefault("sizes", "1000,10000,100000").split(",")) {
+				for (final String ttl : options.getOrDefault("ttls", "5m,20m,1h").split(",")) {
+					simulations.add(new Simulation(policy.trim(), Integer.parseInt(size.trim()), ttl.trim()));
+				}
+			}
+		}
+
+		final Replay replay = replay(Paths.get(args[0]), simulations);
+		final double seconds = Math.max(1, replay.lastMillis - replay.firstMillis) / 1000.0;
+		System.out.printf(Locale.ROOT, "%d events over %.0fs, %d cache lookups, %.2f oauth requests/s observed%n",
+				replay.events, seconds, replay.lookups, replay.observedRequests / seconds);
+		System.out.printf(Locale.ROOT, "%-6s %10s %8s %10s %14s %12s%n", "policy", "size", "ttl", "hit ratio",
+				"requests/s", "memory");
+		for (final Simulation simulation : simulations) {
+			System.out.printf(Locale.ROOT, "%-6s %10d %8s %9.2f%% %14.2f %10.1fmb%n", simulation.policyName,
+					simulation.capacity, simulation.ttlName,
+					replay.lookups == 0 ? 0.0 : 100.0 * simulation.hits / replay.lookups,
+					simulation.requests / seconds, simulation.peak * entryBytes / (1024.0 * 1024.0));
+		}
+	}
+
+	/**
+	 * Feeds every event of the trace to the simulations
+	 */
+	static Replay replay(final Path trace, final List<Simulation> simulations) throws IOException {
+		final Replay replay = new Replay();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(trace), 1 << 16))) {
+			if (in.readLong() != AuthAuditTrail.TRACE_MAGIC) {
+				throw new IOException(trace + " is not an authentication trace");
+			}
+			while (true) {
+				final long timestamp;
+				try {
+					timestamp = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				final long principal;
+				final long credential;
+				final int ordinal;
+				final int status;
+				try {
+					principal = in.readLong();
+					credential = in.readLong();
+					ordinal = in.readByte();
+					status = in.readShort();
+				} catch (EOFException e) {
+					throw new IOException(trace + " is corrupt, event " + replay.events + " is truncated", e);
+				}
+				if (ordinal < 0 || ordinal >= AuthAuditTrail.OUTCOMES.length) {
+					throw new IOException(trace + " is corrupt, event " + replay.events + " has unknown outcome ["
+							+ ordinal + "]");
+				}
+				final AuthAuditTrail.Outcome outcome = AuthAuditTrail.OUTCOMES[ordinal];
+
+				if (replay.events++ == 0) {
+					replay.firstMillis = timestamp;
+				}
+				replay.lastMillis = timestamp;
+				if (status != 0 || outcome == AuthAuditTrail.Outcome.ERROR) {
+					replay.observedRequests++;
+				}
+				if (!reachesCache(outcome, status)) {
+					continue;
+				}
+				replay.lookups++;
+				final boolean valid = outcome == AuthAuditTrail.Outcome.SUCCESS
+						|| outcome == AuthAuditTrail.Outcome.CACHE_HIT || outcome == AuthAuditTrail.Outcome.REVALIDATED;
+				for (final Simulation simulation : simulations) {
+					simulation.lookup(timestamp, principal, credential, valid);
+				}
+			}
+		}
+		return replay;
+	}
+
+	/**
+	 * Whether an event went through the cache. Malformed, revoked and penalized tokens are refused before it, and
+	 * service accounts, whose successes carry no status, are never cached.
+	 */
+	private static boolean reachesCache(final AuthAuditTrail.Outcome outcome, final int status) {
+		switch (outcome) {
+		case MALFORMED:
+		case REVOKED:
+		case PENALIZED:
+			return false;
+		case SUCCESS:
+			return status != 0;
+		default:
+			return true;
+		}
+	}
+
+	static long parseMillis(final String duration) {
+		final String value = duration.toLowerCase(Locale.ROOT);
+		if (value.endsWith("ms")) {
+			return Long.parseLong(value.substring(0, value.length() - 2));
+		}
+		final long amount = Long.parseLong(value.substring(0, value.length() - 1));
+		switch (value.charAt(value.length() - 1)) {
+		case 's':
+			return amount * 1000;
+		case 'm':
+			return amount * 60 * 1000;
+		case 'h':
+			return amount * 60 * 60 * 1000;
+		case 'd':
+			return amount * 24 * 60 * 60 * 1000;
+		default:
+			throw new IllegalArgumentException("Invalid duration [" + duration + "]");
+		}
+	}
+
+	/**
+	 * The totals of a replayed trace
+	 */
+	static final class Replay {
+		long events;
+		long lookups;
+		long observedRequests;
+		long firstMillis;
+		long lastMillis;
+	}
+
+	/**
+	 * One cache configuration and its results
+	 */
+	static final class Simulation {
+		private final String policyName;
+		private final String ttlName;
+		private final int capacity;
+		private final long ttlMillis;
+		private final Policy policy;
+		long hits;
+		long requests;
+		long peak;
+
+		Simulation(String policyName, int capacity, String ttlName) {
+			if (capacity < 1) {
+				throw new IllegalArgumentException("Invalid cache size [" + capacity + "]");
+			}
+			this.policyName = policyName;
+			this.capacity = capacity;
+			this.ttlName = ttlName;
+			this.ttlMillis = parseMillis(ttlName);
+			switch (policyName) {
+			case "lru":
+				this.policy = new LinkedPolicy(capacity, true);
+				break;
+			case "fifo":
+				this.policy = new LinkedPolicy(capacity, false);
+				break;
+			case "clock":
+				this.policy = new ClockPolicy(capacity);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown policy [" + policyName + "]");
+			}
+		}
+
+		void lookup(final long timestamp, final long principal, final long credential, final boolean valid) {
+			final CachedUser entry = policy.get(principal);
+			if (entry != null && entry.credential == credential && entry.expires > timestamp) {
+				hits++;
+				return;
+			}
+			requests++;
+			if (valid) {
+				policy.put(principal, new CachedUser(credential, timestamp + ttlMillis));
+				peak = Math.max(peak, policy.size());
+			} else if (entry != null && entry.expires <= timestamp) {
+				policy.remove(principal);
+			}
+		}
+	}
+
+	static final class CachedUser {
+		final long credential;
+		final long expires;
+
+		CachedUser(long credential, long expires) {
+			this.credential = credential;
+			this.expires = expires;
+		}
+	}
+
+	interface Policy {
+		CachedUser get(long key);
+
+		void put(long key, CachedUser entry);
+
+		void remove(long key);
+
+		int size();
+	}
+
+	/**
+	 * LRU when ordered by access, FIFO when ordered by insertion
+	 */
+	static final class LinkedPolicy implements Policy {
+		private final LinkedHashMap<Long, CachedUser> entries;
+
+		LinkedPolicy(final int capacity, final boolean accessOrder) {
+			this.entries = new LinkedHashMap<Long, CachedUser>(16, 0.75f, accessOrder) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, CachedUser> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		@Override
+		public CachedUser get(final long key) {
+			return entries.get(key);
+		}
+
+		@Override
+		public void put(final long key, final CachedUser entry) {
+			entries.put(key, entry);
+		}
+
+		@Override
+		public void remove(final long key) {
+			entries.remove(key);
+		}
+
+		@Override
+		public int size() {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * CLOCK, the second chance approximation of LRU: a hand sweeps the slots, clearing reference bits, and evicts the
+	 * first entry that was not referenced since the hand last passed it. Slots of removed entries are reused before
+	 * anything is evicted.
+	 */
+	static final class ClockPolicy implements Policy {
+		private final Map<Long, Integer> slots = new HashMap<>();
+		private final long[] keys;
+		private final CachedUser[] entries;
+		private final boolean[] referenced;
+		private final int[] free;
+		private int freeCount;
+		private int hand;
+		private int used;
+
+		ClockPolicy(final int capacity) {
+			this.keys = new long[capacity];
+			this.entries = new CachedUser[capacity];
+			this.referenced = new boolean[capacity];
+			this.free = new int[capacity];
+		}
+
+		@Override
+		public CachedUser get(final long key) {
+			final Integer slot = slots.get(key);
+			if (slot == null) {
+				return null;
+			}
+			referenced[slot] = true;
+			return entries[slot];
+		}
+
+		@Override
+		public void put(final long key, final CachedUser entry) {
+			Integer slot = slots.get(key);
+			if (slot == null) {
+				slot = freeCount > 0 ? free[--freeCount] : used < entries.length ? used++ : evict();
+				slots.put(key, slot);
+				keys[slot] = key;
+			}
+			entries[slot] = entry;
+			referenced[slot] = true;
+		}
+
+		@Override
+		public void remove(final long key) {
+			final Integer slot = slots.remove(key);
+			if (slot != null) {
+				entries[slot] = null;
+				referenced[slot] = false;
+				free[freeCount++] = slot;
+			}
+		}
+
+		@Override
+		public int size() {
+			return slots.size();
+		}
+
+		private int evict() {
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) % entries.length;
+			}
+			final int victim = hand;
+			hand = (hand + 1) % entries.length;
+			if (entries[victim] != null) {
+				slots.remove(keys[victim]);
+			}
+			return victim;
+		}
+	}
+}
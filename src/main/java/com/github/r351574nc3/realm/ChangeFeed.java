@@ -0,0 +1,336 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import com.github.r351574nc3.realm.userinfo.ChangeEvent;
+import com.github.r351574nc3.realm.userinfo.ChangeFeedResponse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Consumes the user modifications of the oauth server, such as group changes, so that cached users are expired when
+ * they change rather than when their time to live runs out. Modifications arrive as {@link ChangeEvent}s from either or
+ * both of two sources:
+ * <ul>
+ * <li>a local event file, one JSON event per line, that another process appends to. The file is watched through the
+ * {@link ResourceWatcherService} and only the complete lines appended since it was last read are applied; events that
+ * were in the file when the realm started are skipped, as nothing was cached before them. A file that shrank was
+ * replaced and is read again from its start.</li>
+ * <li>the change feed endpoint of the oauth server, polled at a frequency of the {@link ResourceWatcherService} for the
+ * events recorded since the cursor of its previous response. The watcher only schedules the poll, which runs on a
+ * thread of the realm, so that a slow oauth server does not hold up the watcher thread and the other files it reloads;
+ * while a poll is in flight no other one is started.</li>
+ * </ul>
+ * Every user named by an event is reported to the user listener; an event for all users to the other listener.
+ * Malformed events are skipped and a failed poll is tried again from the same cursor at the next interval, as is a poll
+ * whose response carries no cursor.
+ *
+ * Configured through the realm settings:
+ * <ul>
+ * <li><code>changes.file</code> event file, relative to the config directory</li>
+ * <li><code>changes.poll</code> whether the change feed endpoint is polled (default false)</li>
+ * <li><code>changes.poll_frequency</code> <code>high</code>, <code>medium</code> or <code>low</code>, the
+ * <code>resource.reload.interval.*</code> node setting the endpoint is polled at (default high)</li>
+ * </ul>
+ */
+public class ChangeFeed {
+
+	private static final Logger log = Loggers.getLogger(ChangeFeed.class);
+
+	public static final String FILE_SETTING = "changes.file";
+	public static final String POLL_SETTING = "changes.poll";
+	public static final String POLL_FREQUENCY_SETTING = "changes.poll_frequency";
+
+	/**
+	 * Requests the events recorded since a cursor from the change feed endpoint of the oauth server
+	 */
+	@FunctionalInterface
+	public interface Poller {
+		/**
+		 * @param cursor the cursor of the previous response or <code>null</code> for the first request
+		 * @return the events and the cursor to continue from
+		 */
+		ChangeFeedResponse poll(String cursor) throws Exception;
+	}
+
+	private final Path file;
+	private final Poller poller;
+	private final Consumer<String> userChanged;
+	private final Runnable allChanged;
+	// runs the polls
+	private final Executor executor;
+	// only touched by the watcher thread of the file and by the poll in flight respectively
+	private long position;
+	private volatile String cursor;
+	private final AtomicBoolean polling = new AtomicBoolean();
+	private final LongAdder events = new LongAdder();
+	private final LongAdder malformed = new LongAdder();
+	private final LongAdder polls = new LongAdder();
+	private final LongAdder pollFailures = new LongAdder();
+
+	ChangeFeed(Path file, Poller poller, Consumer<String> userChanged, Runnable allChanged, Executor executor) {
+		this.file = file;
+		this.poller = poller;
+		this.userChanged = userChanged;
+		this.allChanged = allChanged;
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates the change feed of a realm and registers its sources with the watcher service
+	 * @param file the event file or <code>null</code> when no file is configured
+	 * @param settings the settings of the realm
+	 * @param watcherService the service used to watch the file and to schedule the polls
+	 * @param poller requests the change feed endpoint when polling is enabled
+	 * @param userChanged called with the username of every user an event names
+	 * @param allChanged called for an event that affects every user
+	 * @param executor the executor of the realm the polls run on
+	 * @return the change feed
+	 */
+	public static ChangeFeed watch(final Path file, final Settings settings, final ResourceWatcherService watcherService,
+			final Poller poller, final Consumer<String> userChanged, final Runnable allChanged, final Executor executor) {
+		final boolean poll = settings.getAsBoolean(POLL_SETTING, false);
+		final ChangeFeed feed = new ChangeFeed(file, poll ? poller : null, userChanged, allChanged, executor);
+		try {
+			if (file != null) {
+				final FileWatcher watcher = new FileWatcher(file);
+				watcher.addListener(feed.new FileListener());
+				watcherService.add(watcher, ResourceWatcherService.Frequency.HIGH);
+			}
+			if (poll) {
+				final String frequency = settings.get(POLL_FREQUENCY_SETTING, "high");
+				watcherService.add(feed.new PollWatcher(),
+						ResourceWatcherService.Frequency.valueOf(frequency.toUpperCase(Locale.ROOT)));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to watch change feed " + file, e);
+		}
+		return feed;
+	}
+
+	/**
+	 * Returns the number of events applied and skipped and the state of the polling
+	 */
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("events", events.sum());
+		stats.put("malformed", malformed.sum());
+		if (poller != null) {
+			stats.put("polls", polls.sum());
+			stats.put("poll_failures", pollFailures.sum());
+			stats.put("cursor", cursor);
+		}
+		return stats;
+	}
+
+	/**
+	 * Applies the complete lines appended to the event file since it was last read
+	 */
+	void readAppended() {
+		final long size;
+		try {
+			size = Files.size(file);
+		} catch (IOException e) {
+			log.debug("Change feed {} is not readable", file);
+			return;
+		}
+		if (size < position) {
+			log.info("Change feed {} was replaced, reading it from its start", file);
+			position = 0;
+		}
+		if (size == position) {
+			return;
+		}
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+			long skipped = 0;
+			while (skipped < position) {
+				final long n = in.skip(position - skipped);
+				if (n <= 0) {
+					return;
+				}
+				skipped += n;
+			}
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				// only a line ended by a newline is complete; a partial last line is read once it is finished
+				position += line.size() + 1;
+				applyLine(new String(line.toByteArray(), StandardCharsets.UTF_8).trim());
+				line.reset();
+			}
+		} catch (IOException e) {
+			log.error("Unable to read change feed " + file, e);
+		}
+	}
+
+	/**
+	 * Requests the events since the last cursor from the oauth server and applies them
+	 */
+	void poll() {
+		final ChangeFeedResponse response;
+		try {
+			response = poller.poll(cursor);
+		} catch (Exception e) {
+			pollFailures.increment();
+			log.warn("Unable to poll the change feed, retrying from cursor [{}]: {}", cursor, e.toString());
+			return;
+		}
+		polls.increment();
+		if (response.getEvents() != null) {
+			for (final ChangeEvent event : response.getEvents()) {
+				apply(event);
+			}
+		}
+		if (response.getCursor() != null) {
+			cursor = response.getCursor();
+		} else {
+			// dropping the cursor would replay the whole feed
+			log.debug("Change feed response without a cursor, continuing from cursor [{}]", cursor);
+		}
+	}
+
+	/**
+	 * Starts a poll on the executor of the realm unless one is in flight
+	 */
+	void schedulePoll() {
+		if (polling.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			// the threads of the executor are created on demand
+			AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+				executor.execute(() -> {
+					try {
+						poll();
+					} finally {
+						polling.set(false);
+					}
+				});
+				return null;
+			});
+		} catch (EsRejectedExecutionException e) {
+			polling.set(false);
+			log.debug("Unable to schedule a poll of the change feed: {}", e.toString());
+		}
+	}
+
+	private void applyLine(final String line) {
+		if (line.isEmpty() || line.startsWith("#")) {
+			return;
+		}
+		final ChangeEvent event;
+		try {
+			event = AccessController.doPrivileged((PrivilegedExceptionAction<ChangeEvent>) () ->
+					JacksonFactory.getDefaultInstance().fromString(line, ChangeEvent.class));
+		} catch (PrivilegedActionException e) {
+			malformed.increment();
+			log.warn("Skipping malformed change event in {}: {}", file, e.getException().toString());
+			return;
+		}
+		apply(event);
+	}
+
+	private void apply(final ChangeEvent event) {
+		events.increment();
+		if (event.isAll()) {
+			allChanged.run();
+		} else if (event.getUsers() != null) {
+			for (final String username : event.getUsers()) {
+				if (username != null) {
+					userChanged.accept(username);
+				}
+			}
+		}
+	}
+
+	private class FileListener implements FileChangesListener {
+
+		@Override
+		public void onFileInit(Path file) {
+			// events written before the realm started concern users that were never cached
+			try {
+				position = Files.size(file);
+			} catch (IOException e) {
+				position = 0;
+			}
+		}
+
+		@Override
+		public void onFileCreated(Path file) {
+			position = 0;
+			readAppended();
+		}
+
+		@Override
+		public void onFileDeleted(Path file) {
+			position = 0;
+		}
+
+		@Override
+		public void onFileChanged(Path file) {
+			readAppended();
+		}
+	}
+
+	private class PollWatcher implements ResourceWatcher {
+
+		@Override
+		public void init() {
+		}
+
+		@Override
+		public void checkAndNotify() {
+			schedulePoll();
+		}
+	}
+}
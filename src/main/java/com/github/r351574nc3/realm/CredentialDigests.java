@@ -0,0 +1,123 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.common.hash.MessageDigests;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Helpers for deriving a SHA-256 digest of a credential so that it can be compared, revoked or recorded without
+ * keeping the plaintext credential around.
+ */
+public final class CredentialDigests {
+
+	public static final int DIGEST_LENGTH = 32;
+
+	private CredentialDigests() {
+	}
+
+	/**
+	 * Computes the SHA-256 digest of the UTF-8 encoding of the given credential. The intermediate encoded bytes are
+	 * cleared before returning.
+	 * @param credential the credential to digest
+	 * @return the 32 byte digest
+	 */
+	public static byte[] sha256(final CharSequence credential) {
+		return sha256(null, credential);
+	}
+
+	/**
+	 * Computes the SHA-256 digest of a salt followed by the UTF-8 encoding of the given credential. The intermediate
+	 * encoded bytes are cleared before returning.
+	 * @param salt the salt or <code>null</code> for none
+	 * @param credential the credential to digest
+	 * @return the 32 byte digest
+	 */
+	public static byte[] sha256(final byte[] salt, final CharSequence credential) {
+		final ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(credential));
+		try {
+			final MessageDigest digest = MessageDigests.sha256();
+			if (salt != null) {
+				digest.update(salt);
+			}
+			digest.update(encoded.duplicate());
+			return digest.digest();
+		} finally {
+			if (encoded.hasArray()) {
+				Arrays.fill(encoded.array(), (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Compares two digests in constant time
+	 */
+	public static boolean matches(final byte[] expected, final byte[] actual) {
+		return expected != null && actual != null && MessageDigest.isEqual(expected, actual);
+	}
+
+	/**
+	 * Reads the first 8 bytes of a digest as a long. Used where a well distributed 64 bit hash is needed.
+	 */
+	public static long hash64(final byte[] digest) {
+		return readLong(digest, 0);
+	}
+
+	/**
+	 * Reads the second 8 bytes of a digest as a long. Independent of {@link #hash64(byte[])}.
+	 */
+	public static long secondHash64(final byte[] digest) {
+		return readLong(digest, 8);
+	}
+
+	private static long readLong(final byte[] bytes, final int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a hex encoded digest
+	 * @param hex the hex string
+	 * @return the digest or <code>null</code> if the string is not a hex encoded SHA-256 digest
+	 */
+	public static byte[] fromHex(final String hex) {
+		if (hex == null || hex.length() != DIGEST_LENGTH * 2) {
+			return null;
+		}
+		final byte[] digest = new byte[DIGEST_LENGTH];
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			final int high = Character.digit(hex.charAt(i * 2), 16);
+			final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			digest[i] = (byte) ((high << 4) | low);
+		}
+		return digest;
+	}
+}
@@ -23,21 +23,23 @@ import org.apache.logging.log4j.Logger;
 
 import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.xpack.security.authc.AuthenticationToken;
 import org.elasticsearch.xpack.security.authc.DefaultAuthenticationFailureHandler;
 import org.elasticsearch.transport.TransportMessage;
 
-import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
 
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.security.PrivilegedActionException;
 
 /**
  * A custom implementation of a {@link org.elasticsearch.xpack.security.authc.AuthenticationFailureHandler}. The methods in this
@@ -46,24 +48,57 @@ import java.security.PrivilegedActionException;
  * to authenticate an extracted token, or when an exception occurs processing a request.
  *
  * This class extends the {@link DefaultAuthenticationFailureHandler} provided by X-Pack and changes the
- * <code>WWW-Authenticate</code> header to return a custom challenge for demonstration purposes. The default return
- * value is a 401 status with a Basic authentication challenge.
+ * <code>WWW-Authenticate</code> header to return the challenge of the <code>WWW_AUTHENTICATE_CHALLENGE</code> environment
+ * variable (default <code>custom-challenge</code>). The default return value is a 401 status with a Basic
+ * authentication challenge.
+ *
+ * Failed authentications and missing tokens of REST requests, the bulk of the rejections during a credential stuffing
+ * burst, are answered with a stackless exception carrying the precomputed challenge rather than by the default handler.
+ * Transport rejections keep the default exception type, which is registered for serialization between nodes. The
+ * rejections are counted by cause with the {@link FailureTracker}.
  *
  * Other implementations may choose to simply implement the {@link org.elasticsearch.xpack.security.authc.AuthenticationFailureHandler}
  * interface and construct the {@link ElasticsearchSecurityException} instances in the methods with the appropriate
  * {@link org.elasticsearch.rest.RestStatus} and headers. One example is for a realm that will integrate with a single
  * sign on service as in most cases these realms will need to redirect with a {@link org.elasticsearch.rest.RestStatus#FOUND}
  * and <code>Location</code> header with the URL to the SSO login page.
+ *
+ * Failed authentications are also recorded with the {@link FailureTracker} shared with the realms, per principal and
+ * per source address. While either of them is in the penalty box the rejection carries a <code>Retry-After</code>
+ * header with the remaining penalty in seconds.
+ *
+ * Authentications a realm shed from its {@link PriorityLanes} are answered with a 429 and a <code>Retry-After</code>
+ * header rather than a 401 challenge.
  */
 public class CustomAuthenticationFailureHandler extends DefaultAuthenticationFailureHandler {
 	private static final Logger log = Loggers.getLogger(CustomAuthenticationFailureHandler.class);
 
+	/*
+	 * The WWW-Authenticate challenge of every rejection, built once. The header value list is immutable so it can be
+	 * shared by all exceptions.
+	 */
+	private static final List<String> CHALLENGE = Collections.singletonList(AccessController
+			.doPrivileged((PrivilegedAction<String>) () -> {
+				final String challenge = System.getenv().get("WWW_AUTHENTICATE_CHALLENGE");
+				return challenge != null ? challenge : "custom-challenge";
+			}));
+
+	private final FailureTracker failures;
+
+	/**
+	 * @param failures the failure tracker shared with the realms
+	 */
+	public CustomAuthenticationFailureHandler(FailureTracker failures) {
+		this.failures = failures;
+	}
+
 	@Override
 	public ElasticsearchSecurityException failedAuthentication(RestRequest request, AuthenticationToken token,
 			ThreadContext context) {
-		ElasticsearchSecurityException e = super.failedAuthentication(request, token, context);
-		// set a custom header
-		e.addHeader("WWW-Authenticate", "custom-challenge");
+		final ElasticsearchSecurityException e = new StacklessSecurityException(
+				"unable to authenticate user [{}] for REST request [{}]", token.principal(), request.uri());
+		failures.recordRejection(FailureTracker.Rejection.FAILED_AUTHENTICATION);
+		recordFailure(e, token, address(request.getRemoteAddress()), context);
 		return e;
 	}
 
@@ -72,42 +107,51 @@ public class CustomAuthenticationFailureHandler extends DefaultAuthenticationFai
 			String action, ThreadContext context) {
 		ElasticsearchSecurityException e = super.failedAuthentication(message, token, action, context);
 		// set a custom header
-		e.addHeader("WWW-Authenticate", "custom-challenge");
+		e.addHeader("WWW-Authenticate", CHALLENGE);
+		failures.recordRejection(FailureTracker.Rejection.FAILED_AUTHENTICATION);
+		recordFailure(e, token, message.remoteAddress() == null ? null : message.remoteAddress().getAddress(),
+				context);
 		return e;
 	}
 
 	@Override
 	public ElasticsearchSecurityException missingToken(RestRequest request, ThreadContext context) {
-		ElasticsearchSecurityException e = super.missingToken(request, context);
-		// dumpRequest(request);
-		// set a custom header
-		e.addHeader("WWW-Authenticate", "custom-challenge");
-		return e;
+		failures.recordRejection(FailureTracker.Rejection.MISSING_TOKEN);
+		return new StacklessSecurityException("missing authentication token for REST request [{}]", request.uri());
 	}
 
 	@Override
 	public ElasticsearchSecurityException missingToken(TransportMessage message, String action, ThreadContext context) {
 		ElasticsearchSecurityException e = super.missingToken(message, action, context);
 		// set a custom header
-		e.addHeader("WWW-Authenticate", "custom-challenge");
+		e.addHeader("WWW-Authenticate", CHALLENGE);
+		failures.recordRejection(FailureTracker.Rejection.MISSING_TOKEN);
 		return e;
 	}
 
 	@Override
 	public ElasticsearchSecurityException exceptionProcessingRequest(RestRequest request, Exception e,
 			ThreadContext context) {
+		if (e instanceof EsRejectedExecutionException) {
+			return shed((EsRejectedExecutionException) e);
+		}
 		ElasticsearchSecurityException se = super.exceptionProcessingRequest(request, e, context);
 		// set a custom header
-		se.addHeader("WWW-Authenticate", "custom-challenge");
+		se.addHeader("WWW-Authenticate", CHALLENGE);
+		failures.recordRejection(FailureTracker.Rejection.EXCEPTION);
 		return se;
 	}
 
 	@Override
 	public ElasticsearchSecurityException exceptionProcessingRequest(TransportMessage message, String action, Exception e,
 			ThreadContext context) {
+		if (e instanceof EsRejectedExecutionException) {
+			return shed((EsRejectedExecutionException) e);
+		}
 		ElasticsearchSecurityException se = super.exceptionProcessingRequest(message, action, e, context);
 		// set a custom header
-		se.addHeader("WWW-Authenticate", "custom-challenge");
+		se.addHeader("WWW-Authenticate", CHALLENGE);
+		failures.recordRejection(FailureTracker.Rejection.EXCEPTION);
 		return se;
 	}
 
@@ -115,7 +159,78 @@ public class CustomAuthenticationFailureHandler extends DefaultAuthenticationFai
 	public ElasticsearchSecurityException authenticationRequired(String action, ThreadContext context) {
 		ElasticsearchSecurityException se = super.authenticationRequired(action, context);
 		// set a custom header
-		se.addHeader("WWW-Authenticate", "custom-challenge");
+		se.addHeader("WWW-Authenticate", CHALLENGE);
+		failures.recordRejection(FailureTracker.Rejection.AUTHENTICATION_REQUIRED);
 		return se;
 	}
+
+	/**
+	 * Answers an authentication a realm shed under load with a 429 the client can retry after a second, instead of a
+	 * 401 that would make it discard valid credentials
+	 */
+	private ElasticsearchSecurityException shed(final EsRejectedExecutionException e) {
+		final ElasticsearchSecurityException se = new ElasticsearchSecurityException(e.getMessage(),
+				RestStatus.TOO_MANY_REQUESTS, e);
+		se.addHeader("Retry-After", "1");
+		failures.recordRejection(FailureTracker.Rejection.SHED);
+		return se;
+	}
+
+	/**
+	 * Records the failure of the principal and the source and adds a <code>Retry-After</code> header if either of them
+	 * is now penalized. The principal is not penalized when a realm rejected a valid token of another user presented
+	 * with its name, as that failure says nothing about the principal's own credentials. A failure the realm already
+	 * recorded, that of a service account against its source, is not counted again.
+	 */
+	private void recordFailure(final ElasticsearchSecurityException e, final AuthenticationToken token,
+			final String source, final ThreadContext context) {
+		final boolean mismatch = context != null
+				&& context.getTransient(CustomRealm.CONTEXT_PRINCIPAL_MISMATCH_TRANSIENT) != null;
+		final boolean recorded = context != null
+				&& context.getTransient(CustomRealm.CONTEXT_FAILURE_RECORDED_TRANSIENT) != null;
+		final long principalPenalty = token == null || mismatch || recorded ? 0
+				: failures.recordFailure(failures.principalKey(token.principal()));
+		final long sourcePenalty = source == null ? 0 : recorded
+				? failures.remainingPenaltyNanos(failures.sourceKey(source))
+				: failures.recordFailure(failures.sourceKey(source));
+		final long penalty = Math.max(principalPenalty, sourcePenalty);
+		if (penalty > 0) {
+			log.debug("Penalizing {} from {} for {}ms", token == null ? null : token.principal(), source,
+					TimeUnit.NANOSECONDS.toMillis(penalty));
+			failures.recordRejection(FailureTracker.Rejection.PENALIZED);
+			e.addHeader("Retry-After", Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(penalty + 999999999L))));
+		}
+	}
+
+	/**
+	 * A 401 rejection that carries the challenge but no stack trace. Rejections of REST requests are answered to the
+	 * client and never logged with their trace, so walking the stack for each of them during a burst of bad credentials
+	 * would be wasted. The error type of the response stays <code>security_exception</code>.
+	 */
+	static final class StacklessSecurityException extends ElasticsearchSecurityException {
+
+		private static final long serialVersionUID = 1L;
+
+		StacklessSecurityException(String msg, Object... args) {
+			super(msg, RestStatus.UNAUTHORIZED, args);
+			addHeader("WWW-Authenticate", CHALLENGE);
+		}
+
+		@Override
+		protected String getExceptionName() {
+			return "security_exception";
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static String address(final SocketAddress address) {
+		if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+			return ((InetSocketAddress) address).getAddress().getHostAddress();
+		}
+		return null;
+	}
 }
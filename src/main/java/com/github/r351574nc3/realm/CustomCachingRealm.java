@@ -19,6 +19,9 @@
 
 package com.github.r351574nc3.realm;
 
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.settings.SecureString;
 import org.elasticsearch.xpack.security.authc.AuthenticationToken;
@@ -26,9 +29,16 @@ import org.elasticsearch.xpack.security.user.User;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
 import org.elasticsearch.xpack.security.authc.support.CachingRealm;
 import org.elasticsearch.xpack.security.authc.support.UsernamePasswordToken;
+import org.elasticsearch.watcher.ResourceWatcherService;
+
+import com.github.r351574nc3.realm.userinfo.IntrospectionResponse;
+import com.github.r351574nc3.realm.userinfo.UserInfoResponse;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A custom implementation of a {@link CachingRealm} that shows what is necessary to integrate with the X-Pack cache
@@ -36,18 +46,59 @@ import java.util.concurrent.ConcurrentMap;
  * system, the cache may need to be expired. By implementing the {@link CachingRealm} interface, the X-Pack cache eviction
  * API can be used to clear a user or the entire cache.
  *
- * This class merely extends the existing {@link CustomRealm} and implements a cache on top of the realm with a regular
- * {@link ConcurrentMap}. An actual cache implementation will be required for features such as LRU and time based evictions
- * with a size limit.
+ * This class extends the existing {@link CustomRealm} and implements a cache on top of the realm with a
+ * {@link TenantPartitionedCache}, which gives every tenant its own size quota, time based expiry and hit rate stats and
+ * holds the cache as a whole to a memory budget. Users authenticated by token introspection are cached until their
+ * token expires rather than for the configured time to live.
+ *
+ * A userinfo response is fresh for the <code>max-age</code> of its <code>Cache-Control</code> header, or
+ * <code>cache.ttl</code> without one. When it came with an <code>ETag</code> or <code>Last-Modified</code> header the
+ * user is kept for <code>cache.stale_ttl</code> after it went stale and then revalidated with a conditional request: a
+ * <code>304 Not Modified</code> only renews the freshness of the cached user.
+ * Setting <code>cache.store</code> to <code>offheap</code> keeps the cached users in an {@link OffHeapUserCache}
+ * instead.
+ *
+ * Invalidation is versioned so that it cannot be undone by an authentication that was already in flight. Every fill
+ * records the invalidation epoch of its principal before contacting the oauth server and checks it again after storing
+ * its result; if {@link #expire(String)} or {@link #expireAll()} ran in between, the result is removed again. The epochs
+ * are a global counter bumped by {@link #expireAll()} plus a fixed array of striped counters bumped by
+ * {@link #expire(String)}, so they take constant memory and reading the cache never touches them.
+ *
+ * Users reported as modified by the {@link ChangeFeed} of the oauth server are expired as they change, so that
+ * <code>cache.ttl</code> can be long without cached users keeping stale groups.
  */
 public class CustomCachingRealm extends CustomRealm implements CachingRealm {
 
 	public static final String TYPE = "caching-custom";
 
-	private final ConcurrentMap<String, UserHolder> cache = new ConcurrentHashMap<>();
+	public static final String STORE_SETTING = "cache.store";
+	public static final String STALE_TTL_SETTING = "cache.stale_ttl";
+
+	private static final int EPOCH_STRIPES = 1024;
 
-	public CustomCachingRealm(RealmConfig config) {
-		super(TYPE, config);
+	private final UserCache<UserHolder> cache;
+	private final long ttlNanos;
+	private final long staleTtlNanos;
+	private final AtomicLong globalEpoch = new AtomicLong();
+	private final AtomicLongArray principalEpochs = new AtomicLongArray(EPOCH_STRIPES);
+
+	public CustomCachingRealm(RealmConfig config, ResourceWatcherService watcherService, FailureTracker failures,
+			RetryBudget retries) {
+		super(TYPE, config, watcherService, failures, retries);
+		this.ttlNanos = config.settings().getAsTime(TenantPartitionedCache.TTL_SETTING, TenantPartitionedCache.DEFAULT_TTL)
+				.nanos();
+		this.staleTtlNanos = config.settings().getAsTime(STALE_TTL_SETTING, TenantPartitionedCache.DEFAULT_TTL).nanos();
+		final String store = config.settings().get(STORE_SETTING, "heap");
+		switch (store) {
+		case "heap":
+			this.cache = new TenantPartitionedCache<>(config.settings());
+			break;
+		case "offheap":
+			this.cache = new OffHeapUserCache(config.settings());
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown cache store [" + store + "]");
+		}
 	}
 
 	/**
@@ -68,32 +119,51 @@ public class CustomCachingRealm extends CustomRealm implements CachingRealm {
 	/**
 	 * Method that handles the actual authentication of the token. This method will only be called if the token is a
 	 * supported token. The method validates the credentials of the user and if they match, a {@link User} will be
-	 * returned as the argument to the {@code listener}'s {@link ActionListener#onResponse(Object)} method. Else
+	 * returned as the argument to the {@code outerListener}'s {@link ActionListener#onResponse(Object)} method. Else
 	 * {@code null} is returned.
 	 * @param authenticationToken the token to authenticate
-	 * @param listener return authentication result by calling {@link ActionListener#onResponse(Object)}
+	 * @param outerListener return authentication result by calling {@link ActionListener#onResponse(Object)}
 	 */
 	@Override
-	public void authenticate(AuthenticationToken authenticationToken, ActionListener<User> listener) {
+	public void authenticate(AuthenticationToken authenticationToken, ActionListener<User> outerListener) {
+		final AuthTimings.Trace trace = timings.start();
 		try {
 			UsernamePasswordToken token = (UsernamePasswordToken) authenticationToken;
+			if (authenticateFromContext(token, outerListener)) {
+				return;
+			}
+			final ActionListener<User> listener = completing(token, trace, outerListener);
+			// service accounts are verified locally and are never cached
+			if (authenticateServiceAccount(token, listener)) {
+				return;
+			}
+			if (isPenalized(token)) {
+				listener.onResponse(null);
+				return;
+			}
+			final long lookupStart = System.nanoTime();
 			UserHolder userHolder = cache.get(token.principal());
-			// NOTE the null check for the password. This is done because a cache is shared between authentication and lookup
-			// lookup will not store the password...
-			if (userHolder == null || userHolder.password == null) {
-				super.authenticate(token, ActionListener.wrap(user -> {
-					if (user != null) {
-						cache.put(token.principal(), new UserHolder(token.credentials().clone().getChars(), user));
-					}
-					listener.onResponse(user);
-				}, listener::onFailure));
-			} else if (token.credentials().equals(new SecureString(userHolder.password))) {
+			trace.record(AuthTimings.Phase.CACHE, lookupStart);
+			// NOTE the check for the credentials. This is done because a cache is shared between authentication and lookup
+			// lookup will not store the password... A cached user presenting another token, for example after a refresh,
+			// is validated like a miss, and the new token replaces the cached one if the oauth server accepts it.
+			if (userHolder == null || !userHolder.canAuthenticate() || !userHolder.matches(token.credentials())) {
+				final long epoch = epochOf(token.principal());
+				authenticate(token, trace, (userInfo, user) -> fillValidated(token, epoch, user, userInfo,
+						userInfo.getEntityTag(), userInfo.getLastModified()), listener);
+			} else if (revocations.isRevoked(userHolder.digest)) {
+				// revoked credentials are refused without disturbing any other cached user
+				cache.remove(token.principal(), userHolder);
+				audit.publish(AuthAuditTrail.Outcome.REVOKED, token, 0);
+				listener.onResponse(null);
+			} else if (userHolder.isFresh()) {
+				audit.publish(AuthAuditTrail.Outcome.CACHE_HIT, token, 0);
 				listener.onResponse(userHolder.user);
 			} else {
-				listener.onResponse(null);
+				revalidate(token, userHolder, trace, listener);
 			}
 		} catch (Exception e) {
-			listener.onFailure(e);
+			outerListener.onFailure(e);
 		}
 	}
 
@@ -112,10 +182,10 @@ public class CustomCachingRealm extends CustomRealm implements CachingRealm {
 			return userHolder.user;
 		}
 
+		final long epoch = epochOf(username);
 		User user = super.lookupUser(username);
 		if (user != null) {
-			userHolder = new UserHolder(null, user);
-			cache.put(username, userHolder);
+			fill(username, epoch, new UserHolder(null, null, user), -1);
 		}
 		return user;
 	}
@@ -126,7 +196,40 @@ public class CustomCachingRealm extends CustomRealm implements CachingRealm {
 	 */
 	@Override
 	public void expire(String username) {
-		cache.remove(username);
+		principalEpochs.incrementAndGet(stripeOf(username));
+		cache.invalidate(username);
+	}
+
+	/**
+	 * Expires the cached copy of a user whose directory entry changed
+	 */
+	@Override
+	protected void directoryChanged(final String username) {
+		expire(username);
+	}
+
+	/**
+	 * Expires every cached user, as their roles may have been mapped by rules that changed
+	 */
+	@Override
+	protected void roleMappingChanged() {
+		expireAll();
+	}
+
+	/**
+	 * Expires the cached copy of a user the oauth server reported as modified
+	 */
+	@Override
+	protected void userChanged(final String username) {
+		expire(username);
+	}
+
+	/**
+	 * Expires every cached user when the oauth server reported a modification of all of them
+	 */
+	@Override
+	protected void allUsersChanged() {
+		expireAll();
 	}
 
 	/**
@@ -134,21 +237,233 @@ public class CustomCachingRealm extends CustomRealm implements CachingRealm {
 	 */
 	@Override
 	public void expireAll() {
-		cache.clear();
+		globalEpoch.incrementAndGet();
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Adds the per tenant cache stats to the usage stats of the realm
+	 */
+	@Override
+	public Map<String, Object> usageStats() {
+		final Map<String, Object> stats = super.usageStats();
+		stats.put("cache", cache.stats());
+		stats.put("cache_memory", cache.memoryStats());
+		return stats;
+	}
+
+	/**
+	 * Revalidates a stale cached user with a conditional userinfo request. An unchanged user is served from the cache and
+	 * only its freshness is renewed, a changed one is rebuilt from the response. The stale user stays cached when the
+	 * request fails without the oauth server rejecting the token.
+	 * @param token the token being authenticated, which matches the cached user
+	 * @param stale the cached user
+	 * @param trace the trace of the authentication
+	 * @param listener the listener of the authentication
+	 */
+	private void revalidate(final UsernamePasswordToken token, final UserHolder stale, final AuthTimings.Trace trace,
+			final ActionListener<User> listener) {
+		final long epoch = epochOf(token.principal());
+		inLane(token, () -> requestUserInfo(token.credentials().toString(), stale.entityTag, stale.lastModified, trace),
+				ActionListener.wrap(userInfo -> {
+					cache.remove(token.principal(), stale);
+					if (userInfo.isNotModified()) {
+						failures.reset(failures.principalKey(token.principal()));
+						audit.publish(AuthAuditTrail.Outcome.REVALIDATED, token, 304);
+						fillValidated(token, epoch, stale.user, userInfo,
+								userInfo.getEntityTag() != null ? userInfo.getEntityTag() : stale.entityTag,
+								userInfo.getLastModified() != null ? userInfo.getLastModified() : stale.lastModified);
+						listener.onResponse(stale.user);
+					} else if (!ownedByPrincipal(token, userInfo)) {
+						listener.onResponse(null);
+					} else {
+						final User user = validated(token, userInfo, trace);
+						fillValidated(token, epoch, user, userInfo, userInfo.getEntityTag(), userInfo.getLastModified());
+						listener.onResponse(user);
+					}
+				}, e -> {
+					if (isRejection(e)) {
+						cache.remove(token.principal(), stale);
+					}
+					failed(token, e, listener);
+				}));
+	}
+
+	/**
+	 * Caches a user the oauth server vouched for, fresh for the lifetime the server gave and, when there are validators
+	 * to revalidate it with, kept for <code>cache.stale_ttl</code> longer
+	 * @param token the authenticated token
+	 * @param epoch the epoch of the principal when the request to the oauth server started
+	 * @param user the user
+	 * @param userInfo the response of the oauth server
+	 * @param entityTag the entity tag to revalidate the user with or <code>null</code>
+	 * @param lastModified the last modification date to revalidate the user with or <code>null</code>
+	 */
+	private void fillValidated(final UsernamePasswordToken token, final long epoch, final User user,
+			final UserInfoResponse userInfo, final String entityTag, final String lastModified) {
+		if (userInfo.isNoStore()) {
+			return;
+		}
+		final long freshness = freshnessOf(userInfo);
+		final boolean revalidatable = !introspection && (entityTag != null || lastModified != null);
+		final long ttl = revalidatable ? freshness + staleTtlNanos : freshness;
+		if (ttl <= 0) {
+			return;
+		}
+		fill(token.principal(), epoch, new UserHolder(token.credentials().clone().getChars(),
+				CredentialDigests.sha256(token.credentials()), user, System.nanoTime() + freshness,
+				revalidatable ? entityTag : null, revalidatable ? lastModified : null), ttl);
+	}
+
+	/**
+	 * Returns how long a validated user is fresh: an introspected token until its own expiry, a userinfo response for
+	 * its <code>max-age</code>, and otherwise for the configured time to live
+	 */
+	private long freshnessOf(final UserInfoResponse userInfo) {
+		if (userInfo instanceof IntrospectionResponse && ((IntrospectionResponse) userInfo).getExp() != null) {
+			return TimeUnit.MILLISECONDS.toNanos(Math.max(0, ((IntrospectionResponse) userInfo).expiresInMillis()));
+		}
+		if (userInfo.getMaxAge() != null) {
+			return TimeUnit.SECONDS.toNanos(userInfo.getMaxAge());
+		}
+		return ttlNanos;
+	}
+
+	/**
+	 * Stores the result of a fill unless the principal was invalidated after the fill started. The holder is stored
+	 * before the epoch is checked again: an invalidation either bumps the epoch before that check, and the holder is
+	 * removed here, or clears the cache after the holder was stored.
+	 * @param principal the principal
+	 * @param epoch the epoch of the principal when the fill started
+	 * @param holder the result of the fill
+	 * @param ttlNanos the time to live of the entry, negative for the configured time to live
+	 */
+	private void fill(final String principal, final long epoch, final UserHolder holder, final long ttlNanos) {
+		if (ttlNanos == 0) {
+			return;
+		}
+		cache.put(principal, tenantOf(holder.user), holder, ttlNanos);
+		if (epochOf(principal) != epoch) {
+			cache.remove(principal, holder);
+		}
+	}
+
+	/**
+	 * Returns the invalidation epoch of a principal. Both counters only grow, so their sum changes whenever either does.
+	 */
+	private long epochOf(final String principal) {
+		return globalEpoch.get() + principalEpochs.get(stripeOf(principal));
+	}
+
+	private static int stripeOf(final String principal) {
+		final int hash = principal.hashCode();
+		return (hash ^ (hash >>> 16)) & (EPOCH_STRIPES - 1);
+	}
+
+	private static Object tenantOf(final User user) {
+		return user.metadata() == null ? null : user.metadata().get(TENANT_METADATA);
 	}
 
 	// method for testing to validate caching behavior works
 	void putInCache(String username, UserHolder holder) {
-		cache.put(username, holder);
+		cache.put(username, tenantOf(holder.user), holder, -1);
 	}
 
-	static class UserHolder {
-		private final char[] password;
-		private final User user;
+	static class UserHolder implements Accountable {
+
+		private static final long SHALLOW_SIZE = RamUsageEstimator.shallowSizeOfInstance(UserHolder.class)
+				+ RamUsageEstimator.shallowSizeOfInstance(User.class);
+		private static final long MAP_ENTRY_SIZE = RamUsageEstimator.alignObjectSize(
+				RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + Integer.BYTES
+				+ 3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF) + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+		private static final long MAP_SIZE = RamUsageEstimator.shallowSizeOfInstance(HashMap.class)
+				+ RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+		private static final long STRING_SIZE = RamUsageEstimator.shallowSizeOfInstance(String.class);
+		// metadata values other than strings are boxed numbers and booleans
+		private static final long BOXED_SIZE = RamUsageEstimator.alignObjectSize(
+				RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + Long.BYTES);
+
+		final char[] password;
+		final byte[] digest;
+		final User user;
+		final long freshUntil;
+		final String entityTag;
+		final String lastModified;
+
+		UserHolder(char[] password, byte[] digest, User user) {
+			this(password, digest, user, 0, null, null);
+		}
 
-		UserHolder(char[] password, User user) {
+		UserHolder(char[] password, byte[] digest, User user, long freshUntil, String entityTag, String lastModified) {
 			this.password = password;
+			this.digest = digest;
 			this.user = user;
+			this.freshUntil = freshUntil;
+			this.entityTag = entityTag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Whether the entry may be used without revalidation. Entries without validators are fresh for as long as the
+		 * cache keeps them.
+		 */
+		boolean isFresh() {
+			return (entityTag == null && lastModified == null) || System.nanoTime() - freshUntil < 0;
+		}
+
+		/**
+		 * Whether this entry was created by an authentication, as opposed to a lookup, and can verify credentials
+		 */
+		boolean canAuthenticate() {
+			return password != null || digest != null;
+		}
+
+		/**
+		 * Verifies the given credentials against the password or, for entries that only keep a digest, the digest
+		 */
+		boolean matches(final SecureString credentials) {
+			if (password != null) {
+				return credentials.equals(new SecureString(password));
+			}
+			return CredentialDigests.matches(digest, CredentialDigests.sha256(credentials));
+		}
+
+		/**
+		 * Estimates the heap held by this entry and the user it caches
+		 */
+		@Override
+		public long ramBytesUsed() {
+			long bytes = SHALLOW_SIZE + sizeOf(user.principal()) + sizeOf(user.fullName()) + sizeOf(user.email())
+					+ sizeOf(entityTag) + sizeOf(lastModified);
+			if (password != null) {
+				bytes += RamUsageEstimator.sizeOf(password);
+			}
+			if (digest != null) {
+				bytes += RamUsageEstimator.sizeOf(digest);
+			}
+			if (user.roles() != null) {
+				bytes += RamUsageEstimator.shallowSizeOf(user.roles());
+				for (final String role : user.roles()) {
+					bytes += sizeOf(role);
+				}
+			}
+			if (user.metadata() != null) {
+				bytes += MAP_SIZE;
+				for (final Map.Entry<String, Object> entry : user.metadata().entrySet()) {
+					bytes += MAP_ENTRY_SIZE + sizeOf(entry.getKey());
+					final Object value = entry.getValue();
+					bytes += value instanceof String ? sizeOf((String) value) : BOXED_SIZE;
+				}
+			}
+			return bytes;
+		}
+
+		private static long sizeOf(final String string) {
+			if (string == null) {
+				return 0;
+			}
+			return STRING_SIZE + RamUsageEstimator.alignObjectSize(
+					RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) Character.BYTES * string.length());
 		}
 	}
 }
\ No newline at end of file
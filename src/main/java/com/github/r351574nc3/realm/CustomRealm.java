@@ -26,8 +26,10 @@ import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.watcher.ResourceWatcherService;
 import org.elasticsearch.xpack.security.user.User;
 import org.elasticsearch.xpack.security.authc.AuthenticationToken;
 import org.elasticsearch.xpack.security.authc.Realm;
@@ -40,12 +42,21 @@ import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.auth.oauth2.ClientCredentialsTokenRequest;
 import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.json.jackson2.JacksonFactory;
 
+import com.github.r351574nc3.realm.userinfo.BulkValidationRequest;
+import com.github.r351574nc3.realm.userinfo.ChangeFeedRequest;
+import com.github.r351574nc3.realm.userinfo.ChangeFeedResponse;
+import com.github.r351574nc3.realm.userinfo.IntrospectionRequest;
+import com.github.r351574nc3.realm.userinfo.IntrospectionResponse;
 import com.github.r351574nc3.realm.userinfo.UserInfoRequest;
 import com.github.r351574nc3.realm.userinfo.UserInfoResponse;
+import com.github.r351574nc3.realm.userinfo.UserInfoResponseException;
 
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
@@ -57,13 +68,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
 
 /**
  * Custom Realm Implementation for Kibana that authenticates against an oauth2 source
  * 
  * @author Leo Przybylski
  */
-public class CustomRealm extends Realm {
+public class CustomRealm extends Realm implements Closeable {
 
 	private static final Logger log = Loggers.getLogger(CustomRealm.class);
 
@@ -76,6 +89,46 @@ public class CustomRealm extends Realm {
 	public static final String USER_HEADER = "User";
 	public static final String PW_HEADER = "Password";
 
+	/*
+	 * Keys of the user metadata populated from the claims of the userinfo response
+	 */
+	public static final String TENANT_METADATA = "oauth_tenant";
+	public static final String SUBJECT_METADATA = "oauth_sub";
+
+	/*
+	 * Selects how tokens are validated: <code>userinfo</code> (default), <code>introspection</code> or <code>bulk</code>,
+	 * which batches the tokens for the bulk validation endpoint with a {@link ValidationBatcher}
+	 */
+	public static final String VALIDATION_MODE_SETTING = "validation.mode";
+
+	/*
+	 * Selects the method of userinfo requests: <code>post</code> (default) or <code>get</code>, which sends the token
+	 * as a bearer header only and can be retried and served by caches
+	 */
+	public static final String USERINFO_METHOD_SETTING = "userinfo.method";
+
+	/*
+	 * The thread context transient holding the result of the authentication that already happened in a context
+	 */
+	static final String CONTEXT_AUTHENTICATION_TRANSIENT = "_custom_realm_authentication";
+
+	/*
+	 * The thread context transient marking an authentication whose valid token belongs to another user than the
+	 * principal it was presented with, so that the failure handler does not penalize that principal
+	 */
+	static final String CONTEXT_PRINCIPAL_MISMATCH_TRANSIENT = "_custom_realm_principal_mismatch";
+
+	/*
+	 * The thread context transient marking a failed authentication the realm already recorded with the
+	 * {@link FailureTracker}, so that the failure handler does not count it again
+	 */
+	static final String CONTEXT_FAILURE_RECORDED_TRANSIENT = "_custom_realm_failure_recorded";
+
+	/*
+	 * The thread context transient in which the security filter of X-Pack keeps the remote address of a REST request
+	 */
+	static final String REST_REMOTE_ADDRESS_TRANSIENT = "_rest_remote_address";
+
 	protected static final String OAUTH_SERVER = System.getenv().get("OAUTH_SERVER");
 	protected static final String AUTHORIZATION_SERVER_URL = String.format("https://%s/oauth2/auth", OAUTH_SERVER);
 	protected static final String REDIRECT_URL = System.getenv().get("REDIRECT_URL");
@@ -83,30 +136,98 @@ public class CustomRealm extends Realm {
 	protected static final String CLIENT_SECRET = System.getenv().get("REALM_CLIENT_SECRET");
 
 	protected static final GenericUrl USER_INFO_URL = AccessController.doPrivileged((PrivilegedAction<GenericUrl>) () -> {
-		return new GenericUrl(System.getenv().get("USER_INFO_URL"));
+		final String url = System.getenv().get("USER_INFO_URL");
+		return url != null ? new GenericUrl(url) : new GenericUrl(String.format("https://%s/oauth2/userinfo", OAUTH_SERVER));
 	});
 	protected static final GenericUrl TOKEN_SERVER_URL = AccessController
 			.doPrivileged((PrivilegedAction<GenericUrl>) () -> {
 				return new GenericUrl(String.format("https://%s/oauth2/token", OAUTH_SERVER));
 			});
+	protected static final GenericUrl INTROSPECTION_URL = AccessController
+			.doPrivileged((PrivilegedAction<GenericUrl>) () -> {
+				final String url = System.getenv().get("INTROSPECTION_URL");
+				return new GenericUrl(url != null ? url : String.format("https://%s/oauth2/introspect", OAUTH_SERVER));
+			});
+	protected static final GenericUrl BULK_VALIDATION_URL = AccessController
+			.doPrivileged((PrivilegedAction<GenericUrl>) () -> {
+				final String url = System.getenv().get("BULK_VALIDATION_URL");
+				return new GenericUrl(url != null ? url : String.format("https://%s/oauth2/introspect/bulk", OAUTH_SERVER));
+			});
+	protected static final GenericUrl CHANGE_FEED_URL = AccessController
+			.doPrivileged((PrivilegedAction<GenericUrl>) () -> {
+				final String url = System.getenv().get("CHANGE_FEED_URL");
+				return new GenericUrl(url != null ? url : String.format("https://%s/oauth2/changes", OAUTH_SERVER));
+			});
+
+	protected final TokenShapeValidator tokenValidator;
+	protected final RevocationList revocations;
+	protected final FailureTracker failures;
+	protected final UserDirectory directory;
+	protected final RoleMapper roleMapper;
+	protected final ServiceAccounts serviceAccounts;
+	protected final AuthAuditTrail audit;
+	protected final AuthTimings timings;
+	protected final RetryBudget retries;
+	protected final boolean introspection;
+	protected final boolean userInfoGet;
+	protected final ValidationBatcher batcher;
+	protected final PriorityLanes lanes;
+	protected final OAuthTransport transport;
+	protected final ChangeFeed changes;
 
 	/**
 	 * Constructor for the Realm. This constructor delegates to the super class to initialize the common aspects such
 	 * as the logger.
 	 * @param config the configuration specific to this realm
+	 * @param watcherService the service used to watch the realm's local files for changes
+	 * @param failures the failure tracker shared with the authentication failure handler
+	 * @param retries the retry budget shared by the realms of the node
 	 */
-	public CustomRealm(RealmConfig config) {
-		this(TYPE, config);
+	public CustomRealm(RealmConfig config, ResourceWatcherService watcherService, FailureTracker failures,
+			RetryBudget retries) {
+		this(TYPE, config, watcherService, failures, retries);
 	}
 
 	/**
 	 * This constructor should be used by extending classes so that they can specify their own specific type
 	 * @param type the type of the realm
 	 * @param config the configuration specific to this realm
+	 * @param watcherService the service used to watch the realm's local files for changes
+	 * @param failures the failure tracker shared with the authentication failure handler
+	 * @param retries the retry budget shared by the realms of the node
 	 */
-	protected CustomRealm(String type, RealmConfig config) {
+	protected CustomRealm(String type, RealmConfig config, ResourceWatcherService watcherService,
+			FailureTracker failures, RetryBudget retries) {
 		super(type, config);
-		log.warn("Kibana Custom Realm Loaded with version 0.1.38");
+		this.failures = failures;
+		this.retries = retries;
+		this.audit = AuthAuditTrail.create(config);
+		this.transport = OAuthTransport.fromSettings(config.settings());
+		this.timings = AuthTimings.fromSettings(config.name(), config.settings());
+		final String mode = config.settings().get(VALIDATION_MODE_SETTING, "userinfo");
+		if (!"userinfo".equals(mode) && !"introspection".equals(mode) && !"bulk".equals(mode)) {
+			throw new IllegalArgumentException("Unknown validation mode [" + mode + "]");
+		}
+		this.introspection = "introspection".equals(mode);
+		this.lanes = PriorityLanes.fromSettings(config.name(), config.settings(), config.threadContext());
+		this.batcher = "bulk".equals(mode)
+				? ValidationBatcher.start(config, this::requestBulkValidation, lanes.scheduler()) : null;
+		final String method = config.settings().get(USERINFO_METHOD_SETTING, "post");
+		if (!"post".equals(method) && !"get".equals(method)) {
+			throw new IllegalArgumentException("Unknown userinfo method [" + method + "]");
+		}
+		this.userInfoGet = "get".equals(method);
+		this.tokenValidator = TokenShapeValidator.fromSettings(config.settings());
+		this.revocations = RevocationList.watch(resolveConfigFile(RevocationList.FILE_SETTING), watcherService);
+		final Path directoryFile = resolveConfigFile(UserDirectory.FILE_SETTING);
+		this.directory = directoryFile == null ? null
+				: UserDirectory.watch(directoryFile, watcherService, this::directoryChanged);
+		this.serviceAccounts = ServiceAccounts.watch(resolveConfigFile(ServiceAccounts.FILE_SETTING), watcherService);
+		this.roleMapper = RoleMapper.watch(resolveConfigFile(RoleMapper.FILE_SETTING), watcherService,
+				this::roleMappingChanged);
+		this.changes = ChangeFeed.watch(resolveConfigFile(ChangeFeed.FILE_SETTING), config.settings(), watcherService,
+				this::requestChanges, this::userChanged, this::allUsersChanged, lanes.executor());
+		log.info("Kibana Custom Realm [{}] loaded with version 0.1.38", config.name());
 	}
 
 	/**
@@ -117,7 +238,6 @@ public class CustomRealm extends Realm {
 	 */
 	@Override
 	public boolean supports(AuthenticationToken token) {
-		log.debug("Checking to see if " + token + " is supported");
 		return token instanceof UsernamePasswordToken;
 	}
 
@@ -125,30 +245,43 @@ public class CustomRealm extends Realm {
 	 * This method will extract a token from the given {@link RestRequest} if possible. This implementation of token
 	 * extraction looks for two headers, the <code>User</code> header for the username and the <code>Password</code>
 	 * header for the plaintext password
+	 * 
+	 * When the same authorization header was already authenticated in the context, the token is rebuilt from that
+	 * authentication instead of being decoded again.
 	 * @param threadContext the {@link ThreadContext} that contains headers and transient objects for a request
 	 * @return the {@link AuthenticationToken} if possible to extract or <code>null</code>
 	 */
 	@Override
 	public UsernamePasswordToken token(final ThreadContext threadContext) {
+		final long start = System.nanoTime();
+		final UsernamePasswordToken token = extractToken(threadContext);
+		if (token != null) {
+			timings.recordToken(start);
+		}
+		return token;
+	}
+
+	/**
+	 * Extracts the token from the headers of a request, see {@link #token(ThreadContext)}
+	 */
+	protected UsernamePasswordToken extractToken(final ThreadContext threadContext) {
 		final String authStr = threadContext.getHeader(AUTH_HEADER);
 
-		for (final Map.Entry<String, String> entry : threadContext.getHeaders().entrySet()) {
-			log.debug(String.format("Header { '%s': '%s' }", entry.getKey(), entry.getValue()));
+		if (authStr == null) {
+			return usernamePasswordToken(threadContext);
 		}
 
-		if (authStr == null) {
-			log.debug("Authorization again: " + threadContext.getHeader("Authorization"));
-			final UsernamePasswordToken retval = usernamePasswordToken(threadContext);
-			log.debug("Using token: " + retval);
-			return retval;
+		final ContextAuthentication recorded = threadContext.getTransient(CONTEXT_AUTHENTICATION_TRANSIENT);
+		if (recorded != null && authStr.equals(recorded.header)) {
+			return new UsernamePasswordToken(recorded.principal, recorded.credentials.clone());
 		}
 
 		if (authStr.lastIndexOf(" ") < 0) {
 			throw new RuntimeException("Unable to verify token from header: " + authStr);
 		}
 
-		final String authB64 = authStr.substring(authStr.lastIndexOf(" "), 1);
-		final String[] authArr = new String(Base64.getDecoder().decode(authB64)).split(":");
+		final String authB64 = authStr.substring(authStr.lastIndexOf(" ") + 1);
+		final String[] authArr = new String(Base64.getDecoder().decode(authB64)).split(":", 2);
 		final String user = authArr[0];
 		final String token = authArr[1];
 
@@ -187,32 +320,359 @@ public class CustomRealm extends Realm {
 
 	/**
 	 * Method that handles the actual authentication of the token. This method will only be called if the token is a
-	 * supported token. The method validates the credentials of the user and if they match, a {@link User} will be
-	 * returned
+	 * supported token. The method validates the credentials of the user against the userinfo or, depending on
+	 * <code>validation.mode</code>, the introspection or bulk validation endpoint of the oauth server and if they match,
+	 * a {@link User} carrying the claims of the response will be returned
+	 * 
+	 * Principals in the penalty box of the {@link FailureTracker}, and tokens that fail the {@link TokenShapeValidator}
+	 * or are on the {@link RevocationList} are rejected before the oauth server is contacted. {@link ServiceAccounts}
+	 * are authenticated locally and never reach the oauth server.
 	 * 
 	 * {@link User} if authentication is successful, otherwise <code>null</code>
 	 * @param authenticationToken the token to authenticate
 	 */
 	@Override
 	public void authenticate(AuthenticationToken authenticationToken, ActionListener<User> listener) {
+		final AuthTimings.Trace trace = timings.start();
 		final UsernamePasswordToken token = (UsernamePasswordToken) authenticationToken;
-		try {
-			listener.onResponse(new User(token.principal(), getGroupsFor(token.credentials())));
-		} 
-		catch (Exception e) {
+		if (authenticateFromContext(token, listener)) {
+			return;
+		}
+		authenticate(token, trace, (userInfo, user) -> {}, completing(token, trace, listener));
+	}
+
+	/**
+	 * Completes an authentication with the user an earlier authentication of the same credentials in the current thread
+	 * context resolved to. Several internal requests made on behalf of one REST request share its context and
+	 * authenticate the same header, so only the first one does any work.
+	 * @param token the token to authenticate
+	 * @param listener the listener of the authentication
+	 * @return true if the listener has been notified
+	 */
+	protected boolean authenticateFromContext(final UsernamePasswordToken token, final ActionListener<User> listener) {
+		final ThreadContext threadContext = config.threadContext();
+		if (threadContext == null) {
+			return false;
+		}
+		final ContextAuthentication recorded = threadContext.getTransient(CONTEXT_AUTHENTICATION_TRANSIENT);
+		if (recorded == null || !recorded.principal.equals(token.principal())
+				|| !recorded.credentials.equals(token.credentials())) {
+			return false;
+		}
+		listener.onResponse(recorded.user);
+		return true;
+	}
+
+	/**
+	 * Wraps the listener of an authentication so that its {@link AuthTimings} are completed and a successful result is
+	 * recorded in the current thread context before the listener is notified
+	 * @param token the token being authenticated
+	 * @param trace the trace of the authentication
+	 * @param listener the listener of the authentication
+	 * @return the wrapping listener
+	 */
+	protected ActionListener<User> completing(final UsernamePasswordToken token, final AuthTimings.Trace trace,
+			final ActionListener<User> listener) {
+		final ThreadContext threadContext = config.threadContext();
+		return ActionListener.wrap(user -> {
+			timings.complete(trace, token.principal());
+			if (threadContext != null && user != null
+					&& threadContext.getTransient(CONTEXT_AUTHENTICATION_TRANSIENT) == null) {
+				threadContext.putTransient(CONTEXT_AUTHENTICATION_TRANSIENT, new ContextAuthentication(
+						threadContext.getHeader(AUTH_HEADER), token.principal(), token.credentials().clone(), user));
+			}
+			listener.onResponse(user);
+		}, e -> {
+			timings.complete(trace, token.principal());
 			listener.onFailure(e);
+		});
+	}
+
+	/**
+	 * Authenticates a token against the oauth server, handing the response of the server along with the resulting
+	 * {@link User} to a callback before the listener is notified, so that extending classes can keep what the server
+	 * said about the token
+	 * @param token the token to authenticate
+	 * @param trace the trace of the authentication
+	 * @param onValidated called with the response of the oauth server and the user when the token is valid
+	 * @param listener return authentication result by calling {@link ActionListener#onResponse(Object)}
+	 */
+	protected void authenticate(final UsernamePasswordToken token, final AuthTimings.Trace trace,
+			final BiConsumer<UserInfoResponse, User> onValidated, final ActionListener<User> listener) {
+		if (authenticateServiceAccount(token, listener)) {
+			return;
+		}
+		if (isPenalized(token)) {
+			listener.onResponse(null);
+			return;
+		}
+		if (!tokenValidator.accepts(token.credentials())) {
+			audit.publish(AuthAuditTrail.Outcome.MALFORMED, token, 0);
+			listener.onResponse(null);
+			return;
+		}
+		if (revocations.isRevoked(token.credentials())) {
+			audit.publish(AuthAuditTrail.Outcome.REVOKED, token, 0);
+			listener.onResponse(null);
+			return;
+		}
+		final ActionListener<UserInfoResponse> validation = ActionListener.wrap(userInfo -> {
+			if (userInfo == null) {
+				audit.publish(AuthAuditTrail.Outcome.REJECTED, token, 200);
+				listener.onResponse(null);
+				return;
+			}
+			if (!ownedByPrincipal(token, userInfo)) {
+				listener.onResponse(null);
+				return;
+			}
+			final User user = validated(token, userInfo, trace);
+			onValidated.accept(userInfo, user);
+			listener.onResponse(user);
+		}, e -> failed(token, e, listener));
+		if (batcher != null) {
+			// a batched token waits for its batch without holding a thread or a slot of the lanes
+			requestBatchedValidation(token.credentials().toString(), trace, validation);
+			return;
+		}
+		inLane(token, () -> introspection ? requestIntrospection(token.credentials().toString(), trace)
+				: requestUserInfo(token.credentials().toString(), null, null, trace), validation);
+	}
+
+	/**
+	 * Checks that a token the oauth server accepted was issued to the principal it was presented with. A valid token of
+	 * any other user is rejected, without penalizing the principal whose name was presented, before a user is built or
+	 * cached for it.
+	 * @param token the accepted token
+	 * @param userInfo the response of the oauth server
+	 * @return true if the username of the response is the principal of the token
+	 */
+	protected boolean ownedByPrincipal(final UsernamePasswordToken token, final UserInfoResponse userInfo) {
+		if (token.principal().equals(userInfo.getUsername())) {
+			return true;
 		}
+		log.debug("Rejecting a token of [{}] presented for [{}]", userInfo.getUsername(), token.principal());
+		audit.publish(AuthAuditTrail.Outcome.REJECTED, token, 200);
+		final ThreadContext threadContext = config.threadContext();
+		if (threadContext != null && threadContext.getTransient(CONTEXT_PRINCIPAL_MISMATCH_TRANSIENT) == null) {
+			threadContext.putTransient(CONTEXT_PRINCIPAL_MISMATCH_TRANSIENT, Boolean.TRUE);
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the user for a token the oauth server accepted and clears the principal's failure record
+	 * @param token the accepted token
+	 * @param userInfo the response of the oauth server
+	 * @param trace the trace of the authentication
+	 * @return the user
+	 */
+	protected User validated(final UsernamePasswordToken token, final UserInfoResponse userInfo,
+			final AuthTimings.Trace trace) {
+		final long start = System.nanoTime();
+		final User user = buildUser(token.principal(), userInfo, getGroupsFor(userInfo));
+		trace.record(AuthTimings.Phase.BUILD, start);
+		failures.reset(failures.principalKey(token.principal()));
+		audit.publish(AuthAuditTrail.Outcome.SUCCESS, token, 200);
+		return user;
+	}
+
+	/**
+	 * Completes an authentication whose request to the oauth server failed. Only a {@link #isRejection(Exception)
+	 * rejection} of the token fails the authentication, and so counts against the principal. Any other error response or
+	 * transport error is passed to the listener as an error.
+	 * @param token the token being authenticated
+	 * @param e the failure
+	 * @param listener the listener of the authentication
+	 */
+	protected void failed(final UsernamePasswordToken token, final Exception e, final ActionListener<User> listener) {
+		if (e instanceof EsRejectedExecutionException) {
+			audit.publish(AuthAuditTrail.Outcome.SHED, token, 0);
+			listener.onFailure(e);
+			return;
+		}
+		final int status = e.getCause() instanceof UserInfoResponseException
+				? ((UserInfoResponseException) e.getCause()).getStatusCode() : 0;
+		if (isRejection(e)) {
+			// the oauth server rejected the token, which is a failed authentication rather than an error
+			audit.publish(AuthAuditTrail.Outcome.REJECTED, token, status);
+			listener.onResponse(null);
+			return;
+		}
+		audit.publish(AuthAuditTrail.Outcome.ERROR, token, status);
+		listener.onFailure(e);
+	}
+
+	/**
+	 * Whether a request to the oauth server failed because the server rejected the token, with a 400, 401 or 403 error
+	 * response. Other error responses, such as 429 or 5xx, say nothing about the token.
+	 */
+	protected static boolean isRejection(final Exception e) {
+		if (!(e.getCause() instanceof UserInfoResponseException)) {
+			return false;
+		}
+		switch (((UserInfoResponseException) e.getCause()).getStatusCode()) {
+		case 400:
+		case HttpStatusCodes.STATUS_CODE_UNAUTHORIZED:
+		case HttpStatusCodes.STATUS_CODE_FORBIDDEN:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a request to the oauth server within the {@link PriorityLanes} lane of the authentication. The calling
+	 * thread, which may be a network thread of the node, only asks for a slot: the request is always sent from a thread
+	 * of the lanes, right away when the lane has a free slot and otherwise once a slot is returned. The slot is returned
+	 * before the listener is notified.
+	 * @param token the token being authenticated
+	 * @param request the request to the oauth server
+	 * @param listener notified with the result of the request, its failure, or an {@link EsRejectedExecutionException}
+	 *        if the authentication is shed
+	 */
+	protected <T> void inLane(final UsernamePasswordToken token, final Callable<T> request,
+			final ActionListener<T> listener) {
+		final PriorityLanes.Lane lane = lanes.classify(token.principal(), config.threadContext());
+		lanes.enter(lane, new ActionListener<Void>() {
+			@Override
+			public void onResponse(final Void admitted) {
+				final T result;
+				try {
+					result = request.call();
+				} catch (Exception e) {
+					lanes.exit(lane);
+					listener.onFailure(e);
+					return;
+				}
+				lanes.exit(lane);
+				listener.onResponse(result);
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				listener.onFailure(e);
+			}
+		});
+	}
+
+	/**
+	 * Authenticates the token of a service account against its local credential digest. Service accounts are checked
+	 * before the penalty box of principals so that failures recorded against their name cannot lock them out. Guessing
+	 * their secret is held back by the source address instead: a failed attempt is recorded against the source of the
+	 * request, and a source in the penalty box is refused before its secret is verified. The source is only known for
+	 * REST requests; failures of other requests are recorded by the failure handler.
+	 * @param token the token to authenticate
+	 * @param listener the listener of the authentication
+	 * @return true if the principal is a service account and the listener has been notified
+	 */
+	protected boolean authenticateServiceAccount(final UsernamePasswordToken token,
+			final ActionListener<User> listener) {
+		final ServiceAccounts.Account account = serviceAccounts.get(token.principal());
+		if (account == null) {
+			return false;
+		}
+		final long source = failures.sourceKey(sourceAddress());
+		if (failures.remainingPenaltyNanos(source) > 0) {
+			audit.publish(AuthAuditTrail.Outcome.PENALIZED, token, 0);
+			recordServiceAccountFailure(source);
+			listener.onResponse(null);
+		} else if (account.verify(token.credentials())) {
+			audit.publish(AuthAuditTrail.Outcome.SUCCESS, token, 0);
+			listener.onResponse(account.user());
+		} else {
+			audit.publish(AuthAuditTrail.Outcome.REJECTED, token, 0);
+			recordServiceAccountFailure(source);
+			listener.onResponse(null);
+		}
+		return true;
+	}
+
+	private void recordServiceAccountFailure(final long source) {
+		final ThreadContext threadContext = config.threadContext();
+		if (source == 0 || threadContext == null) {
+			return;
+		}
+		failures.recordFailure(source);
+		if (threadContext.getTransient(CONTEXT_FAILURE_RECORDED_TRANSIENT) == null) {
+			threadContext.putTransient(CONTEXT_FAILURE_RECORDED_TRANSIENT, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Returns the remote address of the REST request being authenticated or <code>null</code> when it is not known
+	 */
+	protected String sourceAddress() {
+		final ThreadContext threadContext = config.threadContext();
+		final Object address = threadContext == null ? null : threadContext.getTransient(REST_REMOTE_ADDRESS_TRANSIENT);
+		if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+			return ((InetSocketAddress) address).getAddress().getHostAddress();
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the principal of the token is serving a penalty for repeated authentication failures
+	 */
+	protected boolean isPenalized(final UsernamePasswordToken token) {
+		if (failures.remainingPenaltyNanos(failures.principalKey(token.principal())) > 0) {
+			audit.publish(AuthAuditTrail.Outcome.PENALIZED, token, 0);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the {@link User} for a principal from the claims of its userinfo response. The tenant and subject claims
+	 * are kept in the user metadata.
+	 * @param principal the authenticated principal
+	 * @param userInfo the userinfo response of the oauth server
+	 * @param roles the roles of the user
+	 * @return the user
+	 */
+	protected User buildUser(final String principal, final UserInfoResponse userInfo, final String[] roles) {
+		final Map<String, Object> metadata = new HashMap<>();
+		if (userInfo.getTenant() != null) {
+			metadata.put(TENANT_METADATA, userInfo.getTenant());
+		}
+		if (userInfo.getSub() != null) {
+			metadata.put(SUBJECT_METADATA, userInfo.getSub());
+		}
+		return new User(principal, roles, userInfo.getName(), userInfo.getEmail(), metadata, true);
 	}
 
 	/** 
-	 * Function for deriving groups through your oauth service
+	 * Function for deriving groups from the claims your oauth service returned for a user. The roles are mapped from the
+	 * claims by the {@link RoleMapper} rules of <code>role_mapping.file</code>; without one users get no roles.
 	 */
-	protected String[] getGroupsFor(final SecureString accessToken) throws Exception {
+	protected String[] getGroupsFor(final UserInfoResponse userInfo) {
+		return roleMapper.map(userInfo);
+	}
 
-		return new String[] {};
+	/**
+	 * Requests the userinfo of an access token, conditionally when validators of an earlier response are given
+	 * @param accessToken the token
+	 * @param entityTag the <code>ETag</code> of an earlier response or <code>null</code>
+	 * @param lastModified the <code>Last-Modified</code> date of an earlier response or <code>null</code>
+	 * @param trace the trace of the authentication
+	 * @return the userinfo, which is empty and marked as not modified when the user did not change
+	 */
+	protected UserInfoResponse requestUserInfo(final String accessToken, final String entityTag,
+			final String lastModified, final AuthTimings.Trace trace) throws Exception {
+		final long start = System.nanoTime();
+		long parseNanos = 0;
+		try {
+			final UserInfoResponse userInfo = doRequestUserInfo(accessToken, entityTag, lastModified);
+			parseNanos = userInfo.getParseNanos();
+			return userInfo;
+		} finally {
+			trace.recordNanos(AuthTimings.Phase.REQUEST, System.nanoTime() - start - parseNanos);
+			trace.recordNanos(AuthTimings.Phase.PARSE, parseNanos);
+		}
 	}
 
-	protected UserInfoResponse requestUserInfo(final String accessToken) throws Exception {
+	private UserInfoResponse doRequestUserInfo(final String accessToken, final String entityTag,
+			final String lastModified) {
 		final Credential creds = AccessController.doPrivileged((PrivilegedAction<Credential>) () -> {
 			try {
 				return new Credential(BearerToken.authorizationHeaderAccessMethod()).setAccessToken(accessToken);
@@ -222,7 +682,8 @@ public class CustomRealm extends Realm {
 		});
 		return AccessController.doPrivileged((PrivilegedAction<UserInfoResponse>) () -> {
 			try {
-				return new UserInfoRequest(new NetHttpTransport(), new JacksonFactory(), USER_INFO_URL)
+				return new UserInfoRequest(transport.transport(), new JacksonFactory(), USER_INFO_URL)
+						.setGet(userInfoGet).setValidators(entityTag, lastModified).setRequestInitializer(retries)
 						.setClientAuthentication(creds).execute();
 			} catch (Exception e) {
 				throw new RuntimeException(e);
@@ -230,24 +691,209 @@ public class CustomRealm extends Realm {
 		});
 	}
 
+	/**
+	 * Introspects an access token at the introspection endpoint of the oauth server, authenticating the realm with its
+	 * client credentials
+	 * @param accessToken the token to introspect
+	 * @param trace the trace of the authentication
+	 * @return the introspection response or <code>null</code> if the token is not active
+	 */
+	protected IntrospectionResponse requestIntrospection(final String accessToken, final AuthTimings.Trace trace)
+			throws Exception {
+		final long start = System.nanoTime();
+		long parseNanos = 0;
+		final IntrospectionResponse response;
+		try {
+			response = AccessController.doPrivileged((PrivilegedAction<IntrospectionResponse>) () -> {
+				try {
+					return new IntrospectionRequest(transport.transport(), new JacksonFactory(), INTROSPECTION_URL,
+							accessToken).setRequestInitializer(retries).setClientAuthentication(
+							new ClientParametersAuthentication(CLIENT_ID, CLIENT_SECRET)).execute();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			parseNanos = response.getParseNanos();
+		} finally {
+			trace.recordNanos(AuthTimings.Phase.REQUEST, System.nanoTime() - start - parseNanos);
+			trace.recordNanos(AuthTimings.Phase.PARSE, parseNanos);
+		}
+		return response.isActive() ? response : null;
+	}
+
+	/**
+	 * Validates an access token as part of the next batch of the {@link ValidationBatcher}, without blocking
+	 * @param accessToken the token to validate
+	 * @param trace the trace of the authentication
+	 * @param listener notified by the thread that sent the batch with the introspection result of the token or
+	 *        <code>null</code> if the token is not active
+	 */
+	protected void requestBatchedValidation(final String accessToken, final AuthTimings.Trace trace,
+			final ActionListener<UserInfoResponse> listener) {
+		final long start = System.nanoTime();
+		batcher.validate(accessToken, new ActionListener<IntrospectionResponse>() {
+			@Override
+			public void onResponse(final IntrospectionResponse response) {
+				trace.record(AuthTimings.Phase.REQUEST, start);
+				listener.onResponse(response.isActive() ? response : null);
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				trace.record(AuthTimings.Phase.REQUEST, start);
+				listener.onFailure(e);
+			}
+		});
+	}
+
+	/**
+	 * Validates a batch of access tokens at the bulk validation endpoint of the oauth server, authenticating the realm
+	 * with its client credentials
+	 * @param accessTokens the tokens to validate
+	 * @return the introspection result of every token, in the order of the tokens
+	 */
+	protected List<IntrospectionResponse> requestBulkValidation(final List<String> accessTokens) {
+		return AccessController.doPrivileged((PrivilegedAction<List<IntrospectionResponse>>) () -> {
+			try {
+				return new BulkValidationRequest(transport.transport(), new JacksonFactory(), BULK_VALIDATION_URL,
+						accessTokens).setRequestInitializer(retries).setClientAuthentication(
+						new ClientParametersAuthentication(CLIENT_ID, CLIENT_SECRET)).execute().getResults();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	/**
+	 * Requests the user modifications recorded since a cursor from the change feed endpoint of the oauth server,
+	 * authenticating the realm with its client credentials
+	 * @param cursor the cursor of the previous response or <code>null</code> for the first request
+	 * @return the modifications and the cursor to continue from
+	 */
+	protected ChangeFeedResponse requestChanges(final String cursor) {
+		return AccessController.doPrivileged((PrivilegedAction<ChangeFeedResponse>) () -> {
+			try {
+				return new ChangeFeedRequest(transport.transport(), new JacksonFactory(), CHANGE_FEED_URL, cursor)
+						.setRequestInitializer(retries).setClientAuthentication(
+						new ClientParametersAuthentication(CLIENT_ID, CLIENT_SECRET)).execute();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	/**
+	 * Adds the counts of the authentication audit trail, the latency histograms of the authentication phases, the state
+	 * of the retry budget, the priority lanes, the connection pool and the change feed and the node wide rejection
+	 * counts of the failure handler to the usage stats of the realm
+	 */
+	@Override
+	public Map<String, Object> usageStats() {
+		final Map<String, Object> stats = super.usageStats();
+		stats.put("audit", audit.stats());
+		stats.put("rejections", failures.rejectionStats());
+		stats.put("latency", timings.stats());
+		stats.put("retry_budget", retries.stats());
+		stats.put("lanes", lanes.stats());
+		stats.put("transport", transport.stats());
+		stats.put("changes", changes.stats());
+		if (batcher != null) {
+			stats.put("batcher", batcher.stats());
+		}
+		return stats;
+	}
+
+	/**
+	 * Stops the threads of the realm. X-Pack 5.6 does not close realms, so the threads are daemons that do not hold up
+	 * the shutdown of the node.
+	 */
+	@Override
+	public void close() {
+		if (batcher != null) {
+			batcher.close();
+		}
+		lanes.close();
+	}
+
+	/**
+	 * Resolves a file named by a realm setting against the Elasticsearch config directory
+	 * @param setting the realm setting holding the file name
+	 * @return the path of the file or <code>null</code> if the setting is not present
+	 */
+	protected Path resolveConfigFile(final String setting) {
+		final String location = config.settings().get(setting);
+		if (location == null) {
+			return null;
+		}
+		return config.env().configFile().resolve(location);
+	}
+
+	/**
+	 * Called when the entry of a user in the {@link UserDirectory} was modified or removed
+	 * @param username the identifier for the user
+	 */
+	protected void directoryChanged(final String username) {
+	}
+
+	/**
+	 * Called when the role mapping rules were reloaded
+	 */
+	protected void roleMappingChanged() {
+	}
+
+	/**
+	 * Called when the {@link ChangeFeed} reports a modification of a user at the oauth server
+	 * @param username the identifier for the user
+	 */
+	protected void userChanged(final String username) {
+	}
+
+	/**
+	 * Called when the {@link ChangeFeed} reports a modification that affects every user
+	 */
+	protected void allUsersChanged() {
+	}
+
 	/**
 	 * This method looks for a user that is identified by the given String. No authentication is performed by this method.
-	 * If this realm does not support user lookup, then this method will not be called.
+	 * If this realm does not support user lookup, then this method will not be called. Users are looked up in the local
+	 * {@link UserDirectory} snapshot, never on the oauth server.
 	 * @param username the identifier for the user
 	 * @return {@link User} if found, otherwise <code>null</code>
 	 */
 	@Override
 	public User lookupUser(String username) {
-		throw new RuntimeException("User Lookup not supported");
+		if (directory == null) {
+			throw new RuntimeException("User Lookup not supported");
+		}
+		final UserInfoResponse userInfo = directory.lookup(username);
+		return userInfo == null ? null : buildUser(username, userInfo, getGroupsFor(userInfo));
 	}
 
 	/**
 	 * This method indicates whether this realm supports user lookup or not. User lookup is used for the run as functionality
-	 * found in X-Pack.
+	 * found in X-Pack. Lookup is supported when a user directory is configured with <code>directory.file</code>.
 	 * @return true if lookup is supported, false otherwise
 	 */
 	@Override
 	public boolean userLookupSupported() {
-		return false;
+		return directory != null;
+	}
+
+	/**
+	 * The result of an authentication recorded in the thread context it happened in
+	 */
+	static final class ContextAuthentication {
+		private final String header;
+		private final String principal;
+		private final SecureString credentials;
+		private final User user;
+
+		ContextAuthentication(String header, String principal, SecureString credentials, User user) {
+			this.header = header;
+			this.principal = principal;
+			this.credentials = credentials;
+			this.user = user;
+		}
 	}
 }
@@ -21,6 +21,7 @@ package com.github.r351574nc3.realm;
 
 import org.elasticsearch.xpack.security.authc.Realm;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 /**
  * The factory class for the {@link CustomRealm}. This factory class is responsible for properly constructing the realm
@@ -28,6 +29,22 @@ import org.elasticsearch.xpack.security.authc.RealmConfig;
  */
 public class CustomRealmFactory implements Realm.Factory {
 
+    private final ResourceWatcherService watcherService;
+    private final FailureTracker failures;
+    private final RetryBudget retries;
+
+    /**
+     * @param watcherService the service the created realms use to watch their local files for changes
+     * @param failures the failure tracker shared with the authentication failure handler
+     * @param retries the retry budget shared by the realms of the node
+     */
+    public CustomRealmFactory(final ResourceWatcherService watcherService, final FailureTracker failures,
+            final RetryBudget retries) {
+        this.watcherService = watcherService;
+        this.failures = failures;
+        this.retries = retries;
+    }
+
     /**
      * Create a {@link CustomRealm} based on the given configuration
      * @param config the configuration to create the realm with
@@ -35,6 +52,6 @@ public class CustomRealmFactory implements Realm.Factory {
      */
     @Override
     public CustomRealm create(final RealmConfig config) {
-        return new CustomRealm(config);
+        return new CustomRealm(config, watcherService, failures, retries);
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts authentication failures per principal and per source address and puts keys that keep failing into a penalty
+ * box. Once a key has failed a threshold number of times in a row it is penalized for a base delay that doubles with every
+ * further failure, up to a maximum delay. A successful authentication clears the principal's record.
+ *
+ * The tracker is shared by the {@link CustomAuthenticationFailureHandler}, which records failures and adds a
+ * <code>Retry-After</code> header, and the realms, which refuse penalized principals without contacting the oauth
+ * server. Memory is bounded: records live in a fixed size table and, when a table region is full, the record that
+ * failed least recently is replaced. Keys are placed by a {@link KeyedHash} under a random key of the process, so that
+ * nobody can pick names whose failures evict the record of another key. The tracker also counts the rejections of the
+ * failure handler by cause.
+ *
+ * Configured through the environment like the oauth server itself:
+ * <ul>
+ * <li><code>PENALTY_FAILURE_THRESHOLD</code> failures before a key is penalized (default 5)</li>
+ * <li><code>PENALTY_BASE_DELAY_MS</code> first penalty in milliseconds (default 1000)</li>
+ * <li><code>PENALTY_MAX_DELAY_MS</code> longest penalty in milliseconds (default 300000)</li>
+ * <li><code>PENALTY_MAX_KEYS</code> number of tracked keys (default 65536)</li>
+ * </ul>
+ */
+public class FailureTracker {
+
+	/**
+	 * The cause of a rejection by the failure handler
+	 */
+	public enum Rejection {
+		FAILED_AUTHENTICATION, MISSING_TOKEN, EXCEPTION, AUTHENTICATION_REQUIRED, PENALIZED, SHED;
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	private static final Rejection[] REJECTIONS = Rejection.values();
+	private static final int PROBES = 4;
+	private static final int LOCK_STRIPES = 64;
+
+	private final int threshold;
+	private final long baseDelayNanos;
+	private final long maxDelayNanos;
+	private final int mask;
+	private final long[] keys;
+	private final int[] failures;
+	private final long[] lastFailure;
+	private final long[] penaltyUntil;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final byte[] hashKey = KeyedHash.randomKey();
+	private final ThreadLocal<KeyedHash> hashes = ThreadLocal.withInitial(() -> new KeyedHash(hashKey));
+	private final LongAdder[] rejections = new LongAdder[REJECTIONS.length];
+
+	public FailureTracker(int threshold, long baseDelayMillis, long maxDelayMillis, int maxKeys) {
+		if (threshold < 1 || baseDelayMillis < 1 || maxDelayMillis < baseDelayMillis) {
+			throw new IllegalArgumentException("Invalid penalty configuration");
+		}
+		this.threshold = threshold;
+		this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelayMillis);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		int size = LOCK_STRIPES;
+		while (size < maxKeys) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.keys = new long[size];
+		this.failures = new int[size];
+		this.lastFailure = new long[size];
+		this.penaltyUntil = new long[size];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		for (int i = 0; i < rejections.length; i++) {
+			rejections[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Creates a tracker configured from the given environment variables
+	 */
+	public static FailureTracker fromEnvironment(final Map<String, String> env) {
+		return new FailureTracker(intValue(env, "PENALTY_FAILURE_THRESHOLD", 5),
+				intValue(env, "PENALTY_BASE_DELAY_MS", 1000),
+				intValue(env, "PENALTY_MAX_DELAY_MS", 300000),
+				intValue(env, "PENALTY_MAX_KEYS", 65536));
+	}
+
+	/**
+	 * Returns the key identifying a principal
+	 */
+	public long principalKey(final String principal) {
+		return key('p', principal);
+	}
+
+	/**
+	 * Returns the key identifying a source address
+	 */
+	public long sourceKey(final String address) {
+		return key('s', address);
+	}
+
+	/**
+	 * Returns how long the key remains in the penalty box
+	 * @param key the principal or source key
+	 * @return the remaining penalty in nanoseconds, 0 if the key is not penalized
+	 */
+	public long remainingPenaltyNanos(final long key) {
+		if (key == 0) {
+			return 0;
+		}
+		final int bucket = bucketOf(key);
+		synchronized (lockOf(bucket)) {
+			for (int slot = bucket; slot < bucket + PROBES; slot++) {
+				if (keys[slot] == key) {
+					return Math.max(0, penaltyUntil[slot] - System.nanoTime());
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Records a failed authentication
+	 * @param key the principal or source key
+	 * @return the penalty in nanoseconds the key is now serving, 0 if it is not penalized
+	 */
+	public long recordFailure(final long key) {
+		if (key == 0) {
+			return 0;
+		}
+		final long now = System.nanoTime();
+		final int bucket = bucketOf(key);
+		synchronized (lockOf(bucket)) {
+			int slot = -1;
+			int empty = -1;
+			int oldest = bucket;
+			for (int candidate = bucket; candidate < bucket + PROBES; candidate++) {
+				if (keys[candidate] == key) {
+					slot = candidate;
+					break;
+				}
+				if (keys[candidate] == 0) {
+					if (empty < 0) {
+						empty = candidate;
+					}
+				} else if (lastFailure[candidate] - lastFailure[oldest] < 0) {
+					oldest = candidate;
+				}
+			}
+			if (slot < 0 || now - lastFailure[slot] > maxDelayNanos * 2) {
+				// a new key, or one that has behaved for long enough to start over
+				if (slot < 0) {
+					slot = empty >= 0 ? empty : oldest;
+				}
+				keys[slot] = key;
+				failures[slot] = 0;
+				penaltyUntil[slot] = now;
+			}
+			failures[slot]++;
+			lastFailure[slot] = now;
+			if (failures[slot] < threshold) {
+				return 0;
+			}
+			long delay = baseDelayNanos;
+			for (int i = threshold; i < failures[slot] && delay < maxDelayNanos; i++) {
+				delay <<= 1;
+			}
+			delay = Math.min(delay, maxDelayNanos);
+			penaltyUntil[slot] = now + delay;
+			return delay;
+		}
+	}
+
+	/**
+	 * Clears the record of a key after a successful authentication
+	 */
+	public void reset(final long key) {
+		if (key == 0) {
+			return;
+		}
+		final int bucket = bucketOf(key);
+		synchronized (lockOf(bucket)) {
+			for (int slot = bucket; slot < bucket + PROBES; slot++) {
+				if (keys[slot] == key) {
+					keys[slot] = 0;
+					failures[slot] = 0;
+					penaltyUntil[slot] = 0;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts a rejection of the failure handler
+	 */
+	public void recordRejection(final Rejection cause) {
+		rejections[cause.ordinal()].increment();
+	}
+
+	/**
+	 * Returns the number of rejections of the failure handler by cause
+	 */
+	public Map<String, Object> rejectionStats() {
+		final Map<String, Object> stats = new HashMap<>();
+		for (final Rejection cause : REJECTIONS) {
+			stats.put(cause.label, rejections[cause.ordinal()].sum());
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the first slot of the bucket of {@link #PROBES} slots a key may occupy
+	 */
+	private int bucketOf(final long key) {
+		return (int) (key ^ (key >>> 32)) & mask & ~(PROBES - 1);
+	}
+
+	private Object lockOf(final int bucket) {
+		return locks[(bucket / PROBES) & (LOCK_STRIPES - 1)];
+	}
+
+	private long key(final char kind, final String value) {
+		return value == null ? 0 : hashes.get().apply(kind, value);
+	}
+
+	private static int intValue(final Map<String, String> env, final String name, final int defaultValue) {
+		final String value = env.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keyed pseudonyms of identifiers, or of their {@link Hashes}: HMAC-SHA256 under a key, truncated to 64 bits. Unlike
+ * the plain hashes they cannot be matched against the hashes of known identifiers, nor chosen to collide, without the
+ * key. Not thread safe.
+ */
+final class KeyedHash {
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private final Mac mac;
+	private final byte[] input = new byte[Long.BYTES];
+	private final byte[] output;
+
+	KeyedHash(final byte[] key) {
+		try {
+			this.mac = Mac.getInstance(ALGORITHM);
+			this.mac.init(new SecretKeySpec(key, ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to initialize " + ALGORITHM, e);
+		}
+		this.output = new byte[mac.getMacLength()];
+	}
+
+	/**
+	 * Keyed with the given secret, or with a random key when it is null so that the values only compare within the process
+	 */
+	static KeyedHash of(final String secret) {
+		return new KeyedHash(secret != null ? secret.getBytes(StandardCharsets.UTF_8) : randomKey());
+	}
+
+	/**
+	 * A random key, for pseudonyms that only need to compare within the process
+	 */
+	static byte[] randomKey() {
+		final byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return key;
+	}
+
+	/**
+	 * The pseudonym of a hash, 0 stays 0 so that it can keep marking an absent value
+	 */
+	long apply(final long hash) {
+		if (hash == 0) {
+			return 0;
+		}
+		for (int i = 0; i < Long.BYTES; i++) {
+			input[i] = (byte) (hash >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+		}
+		mac.update(input);
+		return finish();
+	}
+
+	/**
+	 * The pseudonym of an identifier of a kind, so that equal identifiers of different kinds differ. Never 0, so that 0
+	 * can mark an empty slot.
+	 */
+	long apply(final char kind, final CharSequence value) {
+		mac.update((byte) kind);
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			mac.update((byte) (c >>> Byte.SIZE));
+			mac.update((byte) c);
+		}
+		final long pseudonym = finish();
+		return pseudonym == 0 ? 1 : pseudonym;
+	}
+
+	private long finish() {
+		try {
+			mac.doFinal(output, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to compute " + ALGORITHM, e);
+		}
+		long pseudonym = 0;
+		for (int i = 0; i < Long.BYTES; i++) {
+			pseudonym = pseudonym << Byte.SIZE | (output[i] & 0xff);
+		}
+		return pseudonym;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import org.apache.http.HttpRequest;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+/**
+ * The HTTP transport a realm sends its requests to the oauth server with, created once per realm and shared by all of
+ * its requests. Two transports can be selected:
+ * <ul>
+ * <li><code>net</code> the JDK {@link java.net.HttpURLConnection}, which opens a connection for every concurrent request
+ * and keeps an unbounded number of them alive</li>
+ * <li><code>pooled</code> an Apache HttpClient with a bounded pool of persistent connections. Concurrent requests beyond
+ * the size of the pool wait for a pooled connection instead of opening another TLS socket to the oauth server</li>
+ * </ul>
+ *
+ * Configured through the realm settings:
+ * <ul>
+ * <li><code>http.transport</code> <code>net</code> or <code>pooled</code> (default net)</li>
+ * <li><code>http.pool.max_connections</code> connections of the <code>pooled</code> transport (default 20)</li>
+ * <li><code>http.pool.acquire_timeout</code> longest wait for a pooled connection (default 1s)</li>
+ * </ul>
+ *
+ * The <code>pooled</code> transport is google-http-client's {@link ApacheHttpTransport}, which is still written against
+ * the HttpClient 4.0 connection manager. The build pins HttpClient 4.5, where that connection manager is deprecated but
+ * kept, since 4.0.1 does not verify the host name of wildcard certificates (CVE-2014-3577).
+ */
+public class OAuthTransport {
+
+	public static final String TYPE_SETTING = "http.transport";
+	public static final String MAX_CONNECTIONS_SETTING = "http.pool.max_connections";
+	public static final String ACQUIRE_TIMEOUT_SETTING = "http.pool.acquire_timeout";
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 20;
+	private static final TimeValue DEFAULT_ACQUIRE_TIMEOUT = TimeValue.timeValueSeconds(1);
+
+	private final String type;
+	private final HttpTransport transport;
+	private final IntSupplier connections;
+	private final int maxConnections;
+
+	OAuthTransport(String type, HttpTransport transport, IntSupplier connections, int maxConnections) {
+		this.type = type;
+		this.transport = transport;
+		this.connections = connections;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Creates the transport of a realm from its settings
+	 */
+	public static OAuthTransport fromSettings(final Settings settings) {
+		final String type = settings.get(TYPE_SETTING, "net");
+		switch (type) {
+		case "net":
+			return new OAuthTransport(type, new NetHttpTransport(), null, -1);
+		case "pooled":
+			final int maxConnections = settings.getAsInt(MAX_CONNECTIONS_SETTING, DEFAULT_MAX_CONNECTIONS);
+			final long acquireTimeout = settings.getAsTime(ACQUIRE_TIMEOUT_SETTING, DEFAULT_ACQUIRE_TIMEOUT).millis();
+			if (maxConnections < 1 || acquireTimeout < 0) {
+				throw new IllegalArgumentException("Invalid pooled transport configuration");
+			}
+			return AccessController.doPrivileged(
+					(PrivilegedAction<OAuthTransport>) () -> pooled(type, maxConnections, acquireTimeout));
+		default:
+			throw new IllegalArgumentException("Unknown http transport [" + type + "]");
+		}
+	}
+
+	/**
+	 * Creates a pooled transport. The 4.0 connection manager classes are only named here and by their full name, since
+	 * their imports cannot be kept free of deprecation warnings
+	 */
+	@SuppressWarnings("deprecation")
+	private static OAuthTransport pooled(final String type, final int maxConnections, final long acquireTimeout) {
+		final ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder();
+		// every realm talks to a single oauth server, so the pool of its route is the whole pool
+		org.apache.http.conn.params.ConnManagerParams.setMaxTotalConnections(builder.getHttpParams(), maxConnections);
+		org.apache.http.conn.params.ConnManagerParams.setMaxConnectionsPerRoute(builder.getHttpParams(),
+				new org.apache.http.conn.params.ConnPerRouteBean(maxConnections));
+		final PooledHttpClient client = new PooledHttpClient(
+				(org.apache.http.impl.client.DefaultHttpClient) builder.build().getHttpClient(), acquireTimeout);
+		final org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager pool =
+				(org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager) client.getConnectionManager();
+		return new OAuthTransport(type, new ApacheHttpTransport(client), pool::getConnectionsInPool, maxConnections);
+	}
+
+	/**
+	 * The client built by {@link ApacheHttpTransport.Builder}, except that it waits for a pooled connection no longer
+	 * than the acquire timeout. google-http-client sets the pool timeout of every request to the connect timeout of the
+	 * request, which would take precedence over a pool timeout of the client
+	 */
+	@SuppressWarnings("deprecation")
+	private static class PooledHttpClient extends org.apache.http.impl.client.DefaultHttpClient {
+
+		private final long acquireTimeout;
+
+		PooledHttpClient(final org.apache.http.impl.client.DefaultHttpClient client, final long acquireTimeout) {
+			super(client.getConnectionManager(), client.getParams());
+			setRoutePlanner(client.getRoutePlanner());
+			setHttpRequestRetryHandler(client.getHttpRequestRetryHandler());
+			this.acquireTimeout = acquireTimeout;
+		}
+
+		@Override
+		protected org.apache.http.params.HttpParams determineParams(final HttpRequest request) {
+			final org.apache.http.params.HttpParams timeout = new org.apache.http.params.BasicHttpParams();
+			org.apache.http.conn.params.ConnManagerParams.setTimeout(timeout, acquireTimeout);
+			return new org.apache.http.params.DefaultedHttpParams(timeout, super.determineParams(request));
+		}
+	}
+
+	/**
+	 * Returns the transport to build requests with
+	 */
+	public HttpTransport transport() {
+		return transport;
+	}
+
+	/**
+	 * Returns the type of the transport and the connections of its pool
+	 */
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("type", type);
+		if (connections != null) {
+			stats.put("max_connections", maxConnections);
+			stats.put("connections", connections.getAsInt());
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,578 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.xpack.security.user.User;
+
+import com.github.r351574nc3.realm.CustomCachingRealm.UserHolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A {@link UserCache} that keeps its entries serialized in direct buffers outside of the Java heap. Only a table of
+ * principal hashes and clock bits is kept on heap, so a very large user population adds next to nothing to the old
+ * generation that the garbage collector has to scan.
+ *
+ * The buffers are split into fixed size slots grouped into buckets of {@link #WAYS} slots. A principal hashes to one
+ * bucket and may occupy any slot of it. An entry holds the SHA-256 digest of the credential, never the credential
+ * itself, the principal, full name, email and subject of the user, the tenant, the expiry, the validators used to
+ * revalidate the user and the ids of the user's roles interned in an on heap table. Entries that do not fit in a slot are
+ * not cached.
+ *
+ * Reads are optimistic and take no lock unless they race with a write to the same bucket. Per tenant quotas use the
+ * same settings as {@link TenantPartitionedCache}; a tenant that reached its quota can only replace its own entries.
+ * The memory of the store is reserved up front and does not grow with the number of cached users.
+ *
+ * Configured through the realm settings:
+ * <ul>
+ * <li><code>cache.offheap.max_users</code> number of slots (default 100000)</li>
+ * <li><code>cache.offheap.slot_size</code> size of a slot in bytes (default 256)</li>
+ * </ul>
+ */
+public class OffHeapUserCache implements UserCache<UserHolder> {
+
+	public static final String MAX_USERS_SETTING = "cache.offheap.max_users";
+	public static final String SLOT_SIZE_SETTING = "cache.offheap.slot_size";
+
+	static final int WAYS = 8;
+
+	private static final int DEFAULT_MAX_USERS = 100000;
+	private static final int DEFAULT_SLOT_SIZE = 256;
+	private static final int DEFAULT_TENANT_MAX_USERS = 10000;
+	private static final int MAX_BUFFER_SIZE = 1 << 30;
+	private static final int LOCK_STRIPES = 256;
+	private static final int NO_TENANT = Integer.MIN_VALUE;
+
+	private static final byte KIND_LOOKUP = 0;
+	private static final byte KIND_AUTHENTICATION = 1;
+
+	// slot layout: kind, expiry, freshness, digest, tenant, then length prefixed principal, full name, email, subject,
+	// entity tag and last modified date and role ids
+	private static final int KIND_OFFSET = 0;
+	private static final int EXPIRY_OFFSET = 1;
+	private static final int FRESH_OFFSET = 9;
+	private static final int DIGEST_OFFSET = 17;
+	private static final int TENANT_OFFSET = DIGEST_OFFSET + CredentialDigests.DIGEST_LENGTH;
+	private static final int STRINGS_OFFSET = TENANT_OFFSET + 4;
+
+	private final Settings settings;
+	private final long ttlNanos;
+	private final int defaultQuota;
+	private final int slotSize;
+	private final int slotsPerBuffer;
+	private final int bucketMask;
+	private final ByteBuffer[] buffers;
+	private final long[] hashes;
+	private final boolean[] referenced;
+	private final StampedLock[] locks = new StampedLock[LOCK_STRIPES];
+	private final GroupTable groups = new GroupTable();
+	private final ConcurrentMap<Integer, TenantStats> tenants = new ConcurrentHashMap<>();
+
+	public OffHeapUserCache(final Settings settings) {
+		this.settings = settings;
+		this.ttlNanos = settings.getAsTime(TenantPartitionedCache.TTL_SETTING, TenantPartitionedCache.DEFAULT_TTL).nanos();
+		this.defaultQuota = settings.getAsInt(TenantPartitionedCache.MAX_USERS_SETTING, DEFAULT_TENANT_MAX_USERS);
+		this.slotSize = settings.getAsInt(SLOT_SIZE_SETTING, DEFAULT_SLOT_SIZE);
+		if (slotSize < STRINGS_OFFSET + 16 || slotSize > MAX_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Invalid off heap slot size [" + slotSize + "]");
+		}
+
+		int buckets = 1;
+		final int maxUsers = settings.getAsInt(MAX_USERS_SETTING, DEFAULT_MAX_USERS);
+		while (buckets * WAYS < maxUsers) {
+			buckets <<= 1;
+		}
+		final int slots = buckets * WAYS;
+		this.bucketMask = buckets - 1;
+		this.slotsPerBuffer = Math.min(slots, MAX_BUFFER_SIZE / slotSize / WAYS * WAYS);
+		this.buffers = new ByteBuffer[(slots + slotsPerBuffer - 1) / slotsPerBuffer];
+		for (int i = 0; i < buffers.length; i++) {
+			final int bufferSlots = Math.min(slotsPerBuffer, slots - i * slotsPerBuffer);
+			buffers[i] = ByteBuffer.allocateDirect(bufferSlots * slotSize);
+		}
+		this.hashes = new long[slots];
+		this.referenced = new boolean[slots];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new StampedLock();
+		}
+	}
+
+	@Override
+	public UserHolder get(final String principal) {
+		final long hash = hash(principal);
+		final int bucket = bucketOf(hash);
+		final StampedLock lock = lockOf(bucket);
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				final Hit hit = find(bucket, hash, principal);
+				if (lock.validate(stamp)) {
+					return complete(hit);
+				}
+			} catch (RuntimeException e) {
+				// a torn read of a slot that is being rewritten, retried below under the read lock
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return complete(find(bucket, hash, principal));
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void put(final String principal, final Object tenant, final UserHolder value, final long ttlNanos) {
+		final int tenantId = tenantId(tenant);
+		final byte[] entry = encode(principal, tenantId, value, ttlNanos < 0 ? this.ttlNanos : ttlNanos);
+		final TenantStats stats = statsOf(tenantId);
+		// every fill follows a miss
+		stats.misses.increment();
+		if (entry == null) {
+			stats.oversized.increment();
+			return;
+		}
+
+		final long hash = hash(principal);
+		final int bucket = bucketOf(hash);
+		final StampedLock lock = lockOf(bucket);
+		final long stamp = lock.writeLock();
+		try {
+			final int slot = chooseSlot(bucket, hash, principal, tenantId, stats);
+			if (slot < 0) {
+				return;
+			}
+			if (hashes[slot] != 0) {
+				release(slot);
+			}
+			final ByteBuffer buffer = bufferOf(slot);
+			final int offset = offsetOf(slot);
+			for (int i = 0; i < entry.length; i++) {
+				buffer.put(offset + i, entry[i]);
+			}
+			hashes[slot] = hash;
+			referenced[slot] = false;
+			stats.size.incrementAndGet();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public void remove(final String principal, final UserHolder value) {
+		removeIf(principal, value);
+	}
+
+	@Override
+	public void invalidate(final String principal) {
+		removeIf(principal, null);
+	}
+
+	@Override
+	public void invalidateAll() {
+		for (int bucket = 0; bucket <= bucketMask; bucket++) {
+			final StampedLock lock = lockOf(bucket);
+			final long stamp = lock.writeLock();
+			try {
+				for (int slot = bucket * WAYS; slot < (bucket + 1) * WAYS; slot++) {
+					if (hashes[slot] != 0) {
+						release(slot);
+					}
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	@Override
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		for (final Map.Entry<Integer, TenantStats> entry : tenants.entrySet()) {
+			final String tenant = entry.getKey() == NO_TENANT ? TenantPartitionedCache.NO_TENANT : entry.getKey().toString();
+			stats.put(tenant, entry.getValue().toMap());
+		}
+		return stats;
+	}
+
+	@Override
+	public Map<String, Object> memoryStats() {
+		long direct = 0;
+		for (final ByteBuffer buffer : buffers) {
+			direct += buffer.capacity();
+		}
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("direct_bytes", direct);
+		stats.put("heap_bytes", RamUsageEstimator.sizeOf(hashes) + RamUsageEstimator.sizeOf(referenced));
+		return stats;
+	}
+
+	/**
+	 * Removes the entry of a principal, only if its credential digest, or lack of one, matches the given holder when one
+	 * is given
+	 */
+	private void removeIf(final String principal, final UserHolder expected) {
+		final long hash = hash(principal);
+		final int bucket = bucketOf(hash);
+		final StampedLock lock = lockOf(bucket);
+		final long stamp = lock.writeLock();
+		try {
+			for (int slot = bucket * WAYS; slot < (bucket + 1) * WAYS; slot++) {
+				if (hashes[slot] != hash || !principal.equals(readPrincipal(slot))) {
+					continue;
+				}
+				final boolean lookup = bufferOf(slot).get(offsetOf(slot) + KIND_OFFSET) == KIND_LOOKUP;
+				if (expected == null || (expected.digest == null ? lookup
+						: CredentialDigests.matches(expected.digest, readDigest(slot)))) {
+					release(slot);
+				}
+				return;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Picks the slot of the bucket that receives an entry: the slot already holding the principal, then an empty or
+	 * expired slot, then a slot not read since it was last considered. A tenant at its quota may only take one of its
+	 * own slots. Must be called with the bucket's write lock held.
+	 * @return the slot or -1 if the entry must not be cached
+	 */
+	private int chooseSlot(final int bucket, final long hash, final String principal, final int tenantId,
+			final TenantStats stats) {
+		final long now = System.nanoTime();
+		final boolean atQuota = stats.size.get() >= stats.quota;
+		int empty = -1;
+		int expired = -1;
+		int victim = -1;
+		int fallback = -1;
+		for (int slot = bucket * WAYS; slot < (bucket + 1) * WAYS; slot++) {
+			if (hashes[slot] == 0) {
+				if (empty < 0) {
+					empty = slot;
+				}
+				continue;
+			}
+			if (hashes[slot] == hash && principal.equals(readPrincipal(slot))) {
+				return slot;
+			}
+			if (atQuota && readTenant(slot) != tenantId) {
+				continue;
+			}
+			if (now - readExpiry(slot) > 0) {
+				if (expired < 0) {
+					expired = slot;
+				}
+			} else if (referenced[slot]) {
+				referenced[slot] = false;
+				if (fallback < 0) {
+					fallback = slot;
+				}
+			} else if (victim < 0) {
+				victim = slot;
+			}
+		}
+		if (empty >= 0 && !atQuota) {
+			return empty;
+		}
+		if (expired >= 0) {
+			return expired;
+		}
+		if (victim < 0) {
+			victim = fallback;
+		}
+		if (victim >= 0) {
+			statsOf(readTenant(victim)).evictions.increment();
+		}
+		return victim;
+	}
+
+	/**
+	 * Frees a slot and accounts for it with the tenant that owned it. Must be called with the bucket's write lock held.
+	 */
+	private void release(final int slot) {
+		hashes[slot] = 0;
+		referenced[slot] = false;
+		statsOf(readTenant(slot)).size.decrementAndGet();
+	}
+
+	/**
+	 * Locates the slot of a principal. May observe a slot that is being rewritten when called optimistically, in which
+	 * case the result is discarded by the caller.
+	 */
+	private Hit find(final int bucket, final long hash, final String principal) {
+		for (int slot = bucket * WAYS; slot < (bucket + 1) * WAYS; slot++) {
+			if (hashes[slot] != hash) {
+				continue;
+			}
+			if (!principal.equals(readPrincipal(slot))) {
+				continue;
+			}
+			if (System.nanoTime() - readExpiry(slot) > 0) {
+				return null;
+			}
+			return new Hit(slot, decode(slot, principal));
+		}
+		return null;
+	}
+
+	private UserHolder complete(final Hit hit) {
+		if (hit == null) {
+			return null;
+		}
+		referenced[hit.slot] = true;
+		final Object tenant = hit.holder.user.metadata().get(CustomRealm.TENANT_METADATA);
+		statsOf(tenantId(tenant)).hits.increment();
+		return hit.holder;
+	}
+
+	private byte[] encode(final String principal, final int tenantId, final UserHolder value, final long ttl) {
+		final User user = value.user;
+		final byte[][] strings = new byte[][] { utf8(principal), utf8(user.fullName()), utf8(user.email()),
+				utf8((String) user.metadata().get(CustomRealm.SUBJECT_METADATA)), utf8(value.entityTag),
+				utf8(value.lastModified) };
+		final String[] roles = user.roles() == null ? new String[0] : user.roles();
+
+		int length = STRINGS_OFFSET + 2 + roles.length * 4;
+		for (final byte[] string : strings) {
+			length += 2 + (string == null ? 0 : string.length);
+		}
+		if (length > slotSize || roles.length > Short.MAX_VALUE) {
+			return null;
+		}
+
+		final ByteBuffer entry = ByteBuffer.allocate(length);
+		entry.put(value.digest == null ? KIND_LOOKUP : KIND_AUTHENTICATION);
+		entry.putLong(System.nanoTime() + ttl);
+		entry.putLong(value.freshUntil);
+		entry.put(value.digest == null ? new byte[CredentialDigests.DIGEST_LENGTH] : value.digest);
+		entry.putInt(tenantId);
+		for (final byte[] string : strings) {
+			if (string == null) {
+				entry.putShort((short) -1);
+			} else {
+				entry.putShort((short) string.length);
+				entry.put(string);
+			}
+		}
+		entry.putShort((short) roles.length);
+		for (final String role : roles) {
+			entry.putInt(groups.intern(role));
+		}
+		return entry.array();
+	}
+
+	private UserHolder decode(final int slot, final String principal) {
+		final ByteBuffer buffer = bufferOf(slot);
+		final int offset = offsetOf(slot);
+		final boolean authentication = buffer.get(offset + KIND_OFFSET) == KIND_AUTHENTICATION;
+		final byte[] digest = authentication ? readDigest(slot) : null;
+		final int tenantId = buffer.getInt(offset + TENANT_OFFSET);
+
+		int position = offset + STRINGS_OFFSET;
+		// the principal is already known to match
+		position += 2 + Math.max(0, buffer.getShort(position));
+		final String[] strings = new String[5];
+		for (int i = 0; i < strings.length; i++) {
+			final short length = buffer.getShort(position);
+			position += 2;
+			if (length >= 0) {
+				strings[i] = readString(buffer, position, length, offset);
+				position += length;
+			}
+		}
+		final int roleCount = buffer.getShort(position);
+		position += 2;
+		checkBounds(position + roleCount * 4, offset);
+		final String[] roles = new String[roleCount];
+		for (int i = 0; i < roleCount; i++) {
+			roles[i] = groups.name(buffer.getInt(position));
+			position += 4;
+		}
+
+		final Map<String, Object> metadata = new HashMap<>();
+		if (tenantId != NO_TENANT) {
+			metadata.put(CustomRealm.TENANT_METADATA, tenantId);
+		}
+		if (strings[2] != null) {
+			metadata.put(CustomRealm.SUBJECT_METADATA, strings[2]);
+		}
+		final User user = new User(principal, roles, strings[0], strings[1], metadata, true);
+		return new UserHolder(null, digest, user, buffer.getLong(offset + FRESH_OFFSET), strings[3], strings[4]);
+	}
+
+	private String readPrincipal(final int slot) {
+		final ByteBuffer buffer = bufferOf(slot);
+		final int offset = offsetOf(slot);
+		final short length = buffer.getShort(offset + STRINGS_OFFSET);
+		return length < 0 ? null : readString(buffer, offset + STRINGS_OFFSET + 2, length, offset);
+	}
+
+	private String readString(final ByteBuffer buffer, final int position, final int length, final int offset) {
+		checkBounds(position + length, offset);
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(position + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private byte[] readDigest(final int slot) {
+		final ByteBuffer buffer = bufferOf(slot);
+		final int offset = offsetOf(slot) + DIGEST_OFFSET;
+		final byte[] digest = new byte[CredentialDigests.DIGEST_LENGTH];
+		for (int i = 0; i < digest.length; i++) {
+			digest[i] = buffer.get(offset + i);
+		}
+		return digest;
+	}
+
+	private long readExpiry(final int slot) {
+		return bufferOf(slot).getLong(offsetOf(slot) + EXPIRY_OFFSET);
+	}
+
+	private int readTenant(final int slot) {
+		return bufferOf(slot).getInt(offsetOf(slot) + TENANT_OFFSET);
+	}
+
+	private void checkBounds(final int end, final int offset) {
+		if (end > offset + slotSize) {
+			throw new IllegalStateException("Corrupt off heap cache slot");
+		}
+	}
+
+	private ByteBuffer bufferOf(final int slot) {
+		return buffers[slot / slotsPerBuffer];
+	}
+
+	private int offsetOf(final int slot) {
+		return (slot % slotsPerBuffer) * slotSize;
+	}
+
+	private int bucketOf(final long hash) {
+		return (int) (hash ^ (hash >>> 32)) & bucketMask;
+	}
+
+	private StampedLock lockOf(final int bucket) {
+		return locks[bucket & (LOCK_STRIPES - 1)];
+	}
+
+	private TenantStats statsOf(final int tenantId) {
+		return tenants.computeIfAbsent(tenantId, TenantStats::new);
+	}
+
+	private static int tenantId(final Object tenant) {
+		return tenant instanceof Integer ? (Integer) tenant : NO_TENANT;
+	}
+
+	private static byte[] utf8(final String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static long hash(final String principal) {
+		return Hashes.fnv64(principal);
+	}
+
+	private static final class Hit {
+		private final int slot;
+		private final UserHolder holder;
+
+		Hit(int slot, UserHolder holder) {
+			this.slot = slot;
+			this.holder = holder;
+		}
+	}
+
+	private final class TenantStats {
+		private final int quota;
+		private final AtomicInteger size = new AtomicInteger();
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+		private final LongAdder oversized = new LongAdder();
+
+		TenantStats(Integer tenantId) {
+			final String tenant = tenantId == NO_TENANT ? TenantPartitionedCache.NO_TENANT : tenantId.toString();
+			this.quota = settings.getAsInt(TenantPartitionedCache.QUOTA_SETTING_PREFIX + tenant, defaultQuota);
+		}
+
+		Map<String, Object> toMap() {
+			final long hitCount = hits.sum();
+			final long missCount = misses.sum();
+			final long total = hitCount + missCount;
+			final Map<String, Object> stats = new HashMap<>();
+			stats.put("size", size.get());
+			stats.put("quota", quota);
+			stats.put("hits", hitCount);
+			stats.put("misses", missCount);
+			stats.put("evictions", evictions.sum());
+			stats.put("oversized", oversized.sum());
+			stats.put("hit_ratio", total == 0 ? 0.0d : (double) hitCount / total);
+			return stats;
+		}
+	}
+
+	/**
+	 * Interns role names to small integer ids so that an entry stores 4 bytes per role
+	 */
+	private static final class GroupTable {
+		private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+		private final List<String> names = new ArrayList<>();
+		private volatile String[] snapshot = new String[0];
+
+		int intern(final String name) {
+			final Integer id = ids.get(name);
+			if (id != null) {
+				return id;
+			}
+			synchronized (this) {
+				return ids.computeIfAbsent(name, key -> {
+					names.add(key);
+					snapshot = names.toArray(new String[names.size()]);
+					return names.size() - 1;
+				});
+			}
+		}
+
+		String name(final int id) {
+			final String[] names = snapshot;
+			if (id < 0 || id >= names.length) {
+				throw new IllegalStateException("Unknown role id [" + id + "]");
+			}
+			return names[id];
+		}
+	}
+}
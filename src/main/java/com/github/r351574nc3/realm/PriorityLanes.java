@@ -0,0 +1,469 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for the requests a realm sends to the oauth server. Authentications are classified into lanes by
+ * rules on their principal and request headers. The lanes share a pool of request slots, of which each lane may hold
+ * at most its own share, and each lane has a bounded queue of authentications waiting for a slot. A slot returned to
+ * the pool goes to the waiting authentication of the highest priority lane, so under pressure lower priority lanes are
+ * shed first: an authentication is shed rather than queued while a lane of higher priority has authentications
+ * waiting, as well as when its own queue is full or it waited too long. Monitoring polls and ingest clients can so be
+ * kept from taking the capacity interactive users need when the oauth server slows down.
+ *
+ * No thread waits for a slot, and the requests are never sent from the thread that asked for a slot, which may be a
+ * network thread of the node: an admitted authentication always continues, in its own thread context, on a thread of
+ * the lanes. A queued authentication is resumed once an earlier request returns its slot, and one that waited longer
+ * than its lane allows is shed by a sweep scheduled for its deadline, even while every slot stays taken.
+ *
+ * Configured through the realm settings, for example:
+ * <pre>
+ * lanes:
+ *   interactive:
+ *     priority: 10
+ *     concurrency: 16
+ *   background:
+ *     priority: 0
+ *     concurrency: 4
+ *     queue_size: 8
+ *     max_wait: 500ms
+ *     principals: [ "beats_*", "kibana_monitoring" ]
+ *     headers:
+ *       User-Agent: [ "*beat*" ]
+ * default_lane: interactive
+ * lanes_concurrency: 16
+ * </pre>
+ * Rules use <code>*</code> wildcards and are tried in order of priority; an authentication matching none goes to the
+ * <code>default_lane</code>, which may be set to a low priority lane for a realm that only serves background clients.
+ * Each lane accepts <code>priority</code> (default 0), <code>concurrency</code> (default 8), <code>queue_size</code>
+ * (default 32) and <code>max_wait</code> (default 5s). <code>lanes_concurrency</code> is the size of the shared pool
+ * (default the largest lane concurrency) and the number of threads of the lanes. Without lanes requests are not queued
+ * or shed, and at most <code>lanes_concurrency</code> (default 32) of them are sent at once.
+ */
+public class PriorityLanes {
+
+	public static final String LANES_SETTING = "lanes";
+	public static final String DEFAULT_LANE_SETTING = "default_lane";
+	public static final String CONCURRENCY_SETTING = "lanes_concurrency";
+
+	private static final int DEFAULT_CONCURRENCY = 8;
+	private static final int DEFAULT_UNLIMITED_CONCURRENCY = 32;
+	private static final int DEFAULT_QUEUE_SIZE = 32;
+	private static final TimeValue DEFAULT_MAX_WAIT = TimeValue.timeValueSeconds(5);
+
+	private final String realm;
+	private final Lane[] lanes;
+	private final Lane defaultLane;
+	private final int concurrency;
+	private final ThreadContext threadContext;
+	// sends the requests of the admitted authentications
+	private final ExecutorService executor;
+	// sheds the authentications that waited too long
+	private final ScheduledExecutorService scheduler;
+	// free slots of the shared pool, guarded by this
+	private int available;
+
+	PriorityLanes(String realm, Lane[] lanes, Lane defaultLane, int concurrency, ThreadContext threadContext,
+			ExecutorService executor, ScheduledExecutorService scheduler) {
+		this.realm = realm;
+		this.lanes = lanes;
+		this.defaultLane = defaultLane;
+		this.concurrency = concurrency;
+		this.threadContext = threadContext;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.available = concurrency;
+	}
+
+	/**
+	 * Creates the lanes of a realm from its settings along with their threads, which are stopped by {@link #close()}
+	 * @param realm the name of the realm
+	 * @param settings the settings of the realm
+	 * @param threadContext the thread context of the node
+	 * @return the lanes
+	 */
+	public static PriorityLanes fromSettings(final String realm, final Settings settings,
+			final ThreadContext threadContext) {
+		final Map<String, Settings> groups = settings.getGroups(LANES_SETTING + ".");
+		final List<Lane> lanes = new ArrayList<>();
+		int largest = groups.isEmpty() ? DEFAULT_UNLIMITED_CONCURRENCY : 0;
+		for (final Map.Entry<String, Settings> group : groups.entrySet()) {
+			final Lane lane = Lane.fromSettings(group.getKey(), group.getValue());
+			lanes.add(lane);
+			largest = Math.max(largest, lane.concurrency);
+		}
+		lanes.sort((first, second) -> Integer.compare(second.priority, first.priority));
+
+		final String defaultName = settings.get(DEFAULT_LANE_SETTING);
+		if (defaultName == null && lanes.size() > 1) {
+			throw new IllegalArgumentException("[" + DEFAULT_LANE_SETTING + "] is required with several lanes");
+		}
+		Lane defaultLane = defaultName == null && !lanes.isEmpty() ? lanes.get(0) : null;
+		for (final Lane lane : lanes) {
+			if (lane.name.equals(defaultName)) {
+				defaultLane = lane;
+			}
+		}
+		if (defaultLane == null && defaultName != null) {
+			throw new IllegalArgumentException("Unknown default lane [" + defaultName + "]");
+		}
+		final int concurrency = settings.getAsInt(CONCURRENCY_SETTING, largest);
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("Invalid [" + CONCURRENCY_SETTING + "] [" + concurrency + "]");
+		}
+		final String name = "custom-realm-lanes[" + realm + "]";
+		final ThreadContext context = threadContext != null ? threadContext : new ThreadContext(Settings.EMPTY);
+		final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+				EsExecutors.daemonThreadFactory(name + "[scheduler]"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		// the scheduler thread is started here, so that scheduling never has to create one
+		AccessController.doPrivileged((PrivilegedAction<Boolean>) scheduler::prestartCoreThread);
+		return new PriorityLanes(realm, lanes.toArray(new Lane[lanes.size()]), defaultLane, concurrency, context,
+				EsExecutors.newScaling(name, 0, concurrency, 30, TimeUnit.SECONDS,
+						EsExecutors.daemonThreadFactory(name), context), scheduler);
+	}
+
+	/**
+	 * Returns the lane of an authentication
+	 * @param principal the principal being authenticated
+	 * @param threadContext the context holding the headers of the request or <code>null</code>
+	 * @return the lane or <code>null</code> when no lanes are configured
+	 */
+	public Lane classify(final String principal, final ThreadContext threadContext) {
+		for (final Lane lane : lanes) {
+			if (lane.matches(principal, threadContext)) {
+				return lane;
+			}
+		}
+		return defaultLane;
+	}
+
+	/**
+	 * Admits an authentication to a request slot of its lane without blocking. The listener is notified on a thread of
+	 * the lanes once a slot is free, right away or when an earlier request returns its slot. An authentication shed at
+	 * once is notified on the calling thread, one that waited too long on the thread of the lanes that shed it.
+	 * @param lane the lane of the authentication or <code>null</code>
+	 * @param listener notified once the request may be sent, which must then return its slot with {@link #exit(Lane)},
+	 *        or with an {@link EsRejectedExecutionException} when the authentication is shed
+	 */
+	public void enter(final Lane lane, final ActionListener<Void> listener) {
+		if (lane == null) {
+			admit(null, listener);
+			return;
+		}
+		final List<Waiter> expired = new ArrayList<>();
+		final boolean admitted;
+		boolean queued = false;
+		synchronized (this) {
+			final long now = System.nanoTime();
+			expire(now, expired);
+			admitted = available > 0 && lane.inFlight < lane.concurrency && lane.queue.isEmpty();
+			if (admitted) {
+				available--;
+				lane.inFlight++;
+			} else if (!higherPriorityWaiting(lane) && lane.queue.size() < lane.queueSize) {
+				lane.queue.add(new Waiter(lane, now + lane.maxWaitNanos,
+						new ContextPreservingActionListener<>(threadContext.newRestorableContext(false), listener)));
+				queued = true;
+			}
+		}
+		shed(expired);
+		if (admitted) {
+			lane.admitted.increment();
+			admit(lane, listener);
+		} else if (queued) {
+			schedule(lane.maxWaitNanos);
+		} else {
+			lane.shed.increment();
+			listener.onFailure(shedException(lane));
+		}
+	}
+
+	/**
+	 * Returns the request slot taken by {@link #enter(Lane, ActionListener)} and hands it to the next waiting
+	 * authentication of the highest priority
+	 */
+	public void exit(final Lane lane) {
+		if (lane == null) {
+			return;
+		}
+		final List<Waiter> expired = new ArrayList<>();
+		final List<Waiter> next = new ArrayList<>();
+		synchronized (this) {
+			available++;
+			lane.inFlight--;
+			expire(System.nanoTime(), expired);
+			for (Waiter waiter = poll(); waiter != null; waiter = poll()) {
+				next.add(waiter);
+			}
+		}
+		shed(expired);
+		for (final Waiter waiter : next) {
+			resume(waiter);
+		}
+	}
+
+	/**
+	 * Returns the executor the requests of admitted authentications are sent from, which the realm also runs its other
+	 * requests to the oauth server on
+	 */
+	public ExecutorService executor() {
+		return executor;
+	}
+
+	/**
+	 * Returns the scheduler that sheds the authentications that waited too long, which the realm also times its other
+	 * work with
+	 */
+	public ScheduledExecutorService scheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Stops the threads of the lanes. Authentications still waiting for a slot are failed once an earlier request
+	 * returns its slot.
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+		executor.shutdown();
+	}
+
+	/**
+	 * Returns the admitted, shed, waiting and in flight authentications of every lane
+	 */
+	public synchronized Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		for (final Lane lane : lanes) {
+			final Map<String, Object> laneStats = new HashMap<>();
+			laneStats.put("priority", lane.priority);
+			laneStats.put("admitted", lane.admitted.sum());
+			laneStats.put("shed", lane.shed.sum());
+			laneStats.put("waiting", lane.queue.size());
+			laneStats.put("in_flight", lane.inFlight);
+			stats.put(lane.name, laneStats);
+		}
+		if (lanes.length > 0) {
+			stats.put("available", available);
+			stats.put("concurrency", concurrency);
+		}
+		return stats;
+	}
+
+	private boolean higherPriorityWaiting(final Lane lane) {
+		for (final Lane other : lanes) {
+			if (other.priority > lane.priority && !other.queue.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Takes a free slot for the first waiting authentication of the highest priority lane that is below its share.
+	 * Called with the lock held.
+	 */
+	private Waiter poll() {
+		if (available == 0) {
+			return null;
+		}
+		for (final Lane lane : lanes) {
+			if (!lane.queue.isEmpty() && lane.inFlight < lane.concurrency) {
+				available--;
+				lane.inFlight++;
+				return lane.queue.poll();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the authentications that waited too long. Waiters of a lane share its maximum wait, so they expire in
+	 * the order they were queued. Called with the lock held.
+	 */
+	private void expire(final long now, final List<Waiter> expired) {
+		for (final Lane lane : lanes) {
+			while (!lane.queue.isEmpty() && now - lane.queue.peek().deadlineNanos >= 0) {
+				expired.add(lane.queue.poll());
+			}
+		}
+	}
+
+	/**
+	 * Sheds the authentications that waited too long, run by the scheduler once the oldest waiter of a lane is due
+	 */
+	private void sweep() {
+		final List<Waiter> expired = new ArrayList<>();
+		synchronized (this) {
+			expire(System.nanoTime(), expired);
+		}
+		shed(expired);
+	}
+
+	private void schedule(final long delayNanos) {
+		try {
+			scheduler.schedule(this::sweep, delayNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// the lanes are closed
+		}
+	}
+
+	private void shed(final List<Waiter> expired) {
+		for (final Waiter waiter : expired) {
+			waiter.lane.shed.increment();
+			waiter.listener.onFailure(shedException(waiter.lane));
+		}
+	}
+
+	private void resume(final Waiter waiter) {
+		waiter.lane.admitted.increment();
+		admit(waiter.lane, waiter.listener);
+	}
+
+	/**
+	 * Notifies an authentication that took a slot of its lane on a thread of the lanes
+	 */
+	private void admit(final Lane lane, final ActionListener<Void> listener) {
+		try {
+			// the threads of the executor are created on demand, by whichever request is admitted
+			AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+				executor.execute(() -> listener.onResponse(null));
+				return null;
+			});
+		} catch (EsRejectedExecutionException e) {
+			exit(lane);
+			listener.onFailure(e);
+		}
+	}
+
+	private EsRejectedExecutionException shedException(final Lane lane) {
+		return new EsRejectedExecutionException("authentication shed by lane [" + lane.name + "] of realm [" + realm
+				+ "]");
+	}
+
+	/**
+	 * An authentication waiting for a request slot
+	 */
+	private static final class Waiter {
+		private final Lane lane;
+		private final long deadlineNanos;
+		private final ActionListener<Void> listener;
+
+		Waiter(Lane lane, long deadlineNanos, ActionListener<Void> listener) {
+			this.lane = lane;
+			this.deadlineNanos = deadlineNanos;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * A class of authentications with its share of the requests to the oauth server
+	 */
+	public static final class Lane {
+		private final String name;
+		private final int priority;
+		private final int concurrency;
+		private final int queueSize;
+		private final long maxWaitNanos;
+		private final String[] principals;
+		private final Map<String, String[]> headers;
+		// guarded by the lanes
+		private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+		private int inFlight;
+		private final LongAdder admitted = new LongAdder();
+		private final LongAdder shed = new LongAdder();
+
+		Lane(String name, int priority, int concurrency, int queueSize, long maxWaitNanos, String[] principals,
+				Map<String, String[]> headers) {
+			if (concurrency < 1 || queueSize < 0 || maxWaitNanos < 0) {
+				throw new IllegalArgumentException("Invalid configuration of lane [" + name + "]");
+			}
+			this.name = name;
+			this.priority = priority;
+			this.concurrency = concurrency;
+			this.queueSize = queueSize;
+			this.maxWaitNanos = maxWaitNanos;
+			this.principals = principals;
+			this.headers = headers;
+		}
+
+		static Lane fromSettings(final String name, final Settings settings) {
+			final Settings headerSettings = settings.getAsSettings("headers");
+			final Map<String, String[]> headers = new HashMap<>();
+			for (final String header : headerSettings.names()) {
+				headers.put(header, headerSettings.getAsArray(header));
+			}
+			return new Lane(name, settings.getAsInt("priority", 0),
+					settings.getAsInt("concurrency", DEFAULT_CONCURRENCY),
+					settings.getAsInt("queue_size", DEFAULT_QUEUE_SIZE),
+					settings.getAsTime("max_wait", DEFAULT_MAX_WAIT).nanos(),
+					settings.getAsArray("principals"), headers);
+		}
+
+		public String name() {
+			return name;
+		}
+
+		boolean matches(final String principal, final ThreadContext threadContext) {
+			if (principal != null && principals.length > 0 && Regex.simpleMatch(principals, principal)) {
+				return true;
+			}
+			if (threadContext == null) {
+				return false;
+			}
+			for (final Map.Entry<String, String[]> header : headers.entrySet()) {
+				final String value = threadContext.getHeader(header.getKey());
+				if (value != null && Regex.simpleMatch(header.getValue(), value)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return name + Arrays.toString(principals);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.util.ExponentialBackOff;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retries requests to the oauth server that failed with a transport error, under a token bucket budget shared by all
+ * realms of the node. Every request deposits a fraction of a token and the bucket also refills at a minimum rate, while
+ * every retry withdraws a whole token, so retries stay a bounded fraction of the traffic and can never multiply the
+ * load on an oauth server that is already failing. Only idempotent <code>GET</code> requests are retried, after an
+ * exponential backoff with random jitter.
+ *
+ * Configured through the environment like the oauth server itself:
+ * <ul>
+ * <li><code>RETRY_MAX_ATTEMPTS</code> retries of one request (default 2)</li>
+ * <li><code>RETRY_BUDGET_RATIO</code> tokens deposited per request (default 0.1)</li>
+ * <li><code>RETRY_BUDGET_MIN_PER_SECOND</code> tokens refilled per second regardless of traffic (default 5)</li>
+ * <li><code>RETRY_INITIAL_BACKOFF_MS</code> backoff before the first retry in milliseconds (default 50)</li>
+ * </ul>
+ */
+public class RetryBudget implements HttpRequestInitializer {
+
+	// tokens are kept in thousandths so fractional deposits need no floating point arithmetic
+	private static final long TOKEN = 1000;
+	// the bucket holds up to ten seconds worth of the minimum refill rate
+	private static final int CAPACITY_SECONDS = 10;
+	private static final long MIN_REFILL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final int maxRetries;
+	private final long depositPerRequest;
+	private final long refillPerSecond;
+	private final long capacity;
+	private final int initialBackoffMillis;
+	private final AtomicLong balance;
+	private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder exhausted = new LongAdder();
+
+	public RetryBudget(int maxRetries, double ratio, int minPerSecond, int initialBackoffMillis) {
+		if (maxRetries < 0 || ratio < 0 || minPerSecond < 0 || initialBackoffMillis < 1) {
+			throw new IllegalArgumentException("Invalid retry configuration");
+		}
+		this.maxRetries = maxRetries;
+		this.depositPerRequest = (long) (ratio * TOKEN);
+		this.refillPerSecond = minPerSecond * TOKEN;
+		this.capacity = Math.max(1, minPerSecond) * CAPACITY_SECONDS * TOKEN;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.balance = new AtomicLong(capacity);
+	}
+
+	/**
+	 * Creates a budget configured from the given environment variables
+	 */
+	public static RetryBudget fromEnvironment(final Map<String, String> env) {
+		final String ratio = env.get("RETRY_BUDGET_RATIO");
+		return new RetryBudget(intValue(env, "RETRY_MAX_ATTEMPTS", 2),
+				ratio == null ? 0.1 : Double.parseDouble(ratio),
+				intValue(env, "RETRY_BUDGET_MIN_PER_SECOND", 5),
+				intValue(env, "RETRY_INITIAL_BACKOFF_MS", 50));
+	}
+
+	/**
+	 * Deposits the share of the request in the budget and arranges for the request to be retried
+	 */
+	@Override
+	public void initialize(final HttpRequest request) {
+		add(depositPerRequest);
+		if (maxRetries == 0) {
+			return;
+		}
+		final HttpBackOffIOExceptionHandler backOff = new HttpBackOffIOExceptionHandler(new ExponentialBackOff.Builder()
+				.setInitialIntervalMillis(initialBackoffMillis)
+				.setRandomizationFactor(0.5)
+				.setMultiplier(2)
+				.setMaxIntervalMillis(initialBackoffMillis * 16)
+				.setMaxElapsedTimeMillis(initialBackoffMillis * 64)
+				.build());
+		request.setNumberOfRetries(maxRetries);
+		request.setIOExceptionHandler((retried, supportsRetry) -> supportsRetry
+				&& HttpMethods.GET.equals(retried.getRequestMethod())
+				&& tryWithdraw()
+				&& backOff.handleIOException(retried, supportsRetry));
+	}
+
+	/**
+	 * Withdraws a token for a retry
+	 * @return true if the budget allows the retry
+	 */
+	boolean tryWithdraw() {
+		refill();
+		while (true) {
+			final long current = balance.get();
+			if (current < TOKEN) {
+				exhausted.increment();
+				return false;
+			}
+			if (balance.compareAndSet(current, current - TOKEN)) {
+				retries.increment();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the remaining budget and the number of retries made and refused
+	 */
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("balance", balance.get() / TOKEN);
+		stats.put("retries", retries.sum());
+		stats.put("exhausted", exhausted.sum());
+		return stats;
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		final long last = lastRefill.get();
+		final long elapsed = now - last;
+		if (elapsed >= MIN_REFILL_INTERVAL_NANOS && lastRefill.compareAndSet(last, now)) {
+			add(Math.min(capacity, elapsed / 1000 * refillPerSecond / 1000000));
+		}
+	}
+
+	private void add(final long tokens) {
+		if (tokens > 0) {
+			balance.accumulateAndGet(tokens, (current, added) -> Math.min(capacity, current + added));
+		}
+	}
+
+	private static int intValue(final Map<String, String> env, final String name, final int defaultValue) {
+		final String value = env.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.common.hash.MessageDigests;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An immutable set of revoked credential digests. Membership is first tested against a bloom filter so that the common
+ * case, a credential that was not revoked, costs a handful of bit probes. Only a positive answer from the filter is
+ * confirmed against the exact set of digests, so false positives never refuse a valid credential.
+ */
+public final class RevocationFilter {
+
+	public static final RevocationFilter EMPTY = new RevocationFilter(new HashSet<>());
+
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int PROBES = 7;
+
+	private final long[] bits;
+	private final int mask;
+	private final Set<String> digests;
+
+	private RevocationFilter(final Set<String> digests) {
+		this.digests = digests;
+		int size = 64;
+		while (size < digests.size() * BITS_PER_ENTRY && size < (1 << 30)) {
+			size <<= 1;
+		}
+		this.bits = new long[size >>> 6];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Builds a filter from hex encoded SHA-256 credential digests
+	 * @param hexDigests the revoked digests, see {@link CredentialDigests}. Malformed entries are skipped
+	 * @return the filter
+	 */
+	public static RevocationFilter of(final Collection<String> hexDigests) {
+		final Set<String> normalized = new HashSet<>();
+		for (final String hex : hexDigests) {
+			if (CredentialDigests.fromHex(hex) != null) {
+				normalized.add(hex.toLowerCase(Locale.ROOT));
+			}
+		}
+		final RevocationFilter filter = new RevocationFilter(normalized);
+		for (final String hex : normalized) {
+			filter.add(CredentialDigests.fromHex(hex));
+		}
+		return filter;
+	}
+
+	private void add(final byte[] digest) {
+		final long h1 = CredentialDigests.hash64(digest);
+		final long h2 = CredentialDigests.secondHash64(digest);
+		for (int i = 0; i < PROBES; i++) {
+			final int bit = (int) (h1 + i * h2) & mask;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Tests whether the credential with the given digest has been revoked
+	 * @param digest the SHA-256 digest of the credential or <code>null</code> if unknown
+	 * @return true only if the digest is on the revocation list
+	 */
+	public boolean isRevoked(final byte[] digest) {
+		if (digest == null || digests.isEmpty()) {
+			return false;
+		}
+		final long h1 = CredentialDigests.hash64(digest);
+		final long h2 = CredentialDigests.secondHash64(digest);
+		for (int i = 0; i < PROBES; i++) {
+			final int bit = (int) (h1 + i * h2) & mask;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return digests.contains(MessageDigests.toHexString(digest));
+	}
+
+	/**
+	 * Returns the number of revoked digests
+	 */
+	public int size() {
+		return digests.size();
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a {@link RevocationFilter} in sync with a local revocation list file. The file holds one hex encoded SHA-256
+ * digest of a revoked credential per line; blank lines and lines starting with <code>#</code> are ignored. The file is
+ * watched through the {@link ResourceWatcherService} and the filter is replaced as a whole whenever it changes, so
+ * readers never observe a partially loaded list.
+ */
+public class RevocationList {
+
+	private static final Logger log = Loggers.getLogger(RevocationList.class);
+
+	public static final String FILE_SETTING = "revocation.file";
+
+	private final Path file;
+	private volatile RevocationFilter filter = RevocationFilter.EMPTY;
+
+	RevocationList(final Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Creates a revocation list for the given file, loads it and registers it for change notifications
+	 * @param file the revocation list file or <code>null</code> when revocation is not configured
+	 * @param watcherService the service used to watch the file for changes
+	 * @return the revocation list
+	 */
+	public static RevocationList watch(final Path file, final ResourceWatcherService watcherService) {
+		final RevocationList list = new RevocationList(file);
+		if (file == null) {
+			return list;
+		}
+		list.reload();
+		final FileWatcher watcher = new FileWatcher(file);
+		watcher.addListener(list.new FileListener());
+		try {
+			watcherService.add(watcher, ResourceWatcherService.Frequency.HIGH);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to watch revocation list " + file, e);
+		}
+		return list;
+	}
+
+	/**
+	 * Tests whether the credential with the given digest has been revoked
+	 * @param digest the SHA-256 digest of the credential
+	 * @return true if the credential is on the revocation list
+	 */
+	public boolean isRevoked(final byte[] digest) {
+		return filter.isRevoked(digest);
+	}
+
+	/**
+	 * Tests whether a credential has been revoked. The credential is only digested when the list is not empty.
+	 * @param credential the credential
+	 * @return true if the credential is on the revocation list
+	 */
+	public boolean isRevoked(final CharSequence credential) {
+		final RevocationFilter current = filter;
+		return current.size() > 0 && current.isRevoked(CredentialDigests.sha256(credential));
+	}
+
+	void reload() {
+		if (!Files.exists(file)) {
+			filter = RevocationFilter.EMPTY;
+			log.debug("Revocation list {} does not exist", file);
+			return;
+		}
+
+		final List<String> digests = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				digests.add(line);
+			}
+		} catch (IOException e) {
+			// keep the previously loaded list rather than forgetting every revocation
+			log.error("Unable to read revocation list " + file, e);
+			return;
+		}
+		filter = RevocationFilter.of(digests);
+		log.info("Loaded {} revoked credentials from {}", filter.size(), file);
+	}
+
+	private class FileListener implements FileChangesListener {
+
+		@Override
+		public void onFileCreated(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileDeleted(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileChanged(Path file) {
+			reload();
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+
+import com.github.r351574nc3.realm.userinfo.UserInfoResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps the <code>groups</code>, <code>tenant</code> and <code>email</code> claims of a user to Elasticsearch roles
+ * according to a YAML rules file in the style of the X-Pack role mapping file:
+ * <pre>
+ * superuser:
+ *   groups: [ "admins" ]
+ * kibana_user:
+ *   groups: [ "ops-*", "/dev(elopers)?/" ]
+ *   email: [ "*@example.com" ]
+ * tenant_reader:
+ *   tenant: [ "7" ]
+ * </pre>
+ * A role is granted when any of its patterns matches a claim. A pattern is an exact value, a wildcard pattern using
+ * <code>*</code> and <code>?</code>, or a Lucene regular expression enclosed in <code>/</code>. The <code>groups</code>
+ * claim is a comma or whitespace separated list of group names.
+ *
+ * The rules are compiled once per load: exact values into a hash lookup and the patterns of every claim into one
+ * combined automaton, which rejects a value no role matches in a single pass, plus an automaton per role. The roles
+ * derived from a distinct set of groups and tenant are memoized, so users sharing a group membership cost one hash
+ * lookup. The file is watched through the {@link ResourceWatcherService} and replaced as a whole when it changes.
+ */
+public class RoleMapper {
+
+	private static final Logger log = Loggers.getLogger(RoleMapper.class);
+
+	public static final String FILE_SETTING = "role_mapping.file";
+
+	private static final String[] NO_ROLES = new String[0];
+	private static final int MAX_MEMOIZED = 10000;
+
+	private final Path file;
+	private final Runnable changeListener;
+	private volatile Rules rules = Rules.EMPTY;
+
+	RoleMapper(final Path file, final Runnable changeListener) {
+		this.file = file;
+		this.changeListener = changeListener;
+	}
+
+	/**
+	 * Creates a role mapper for the given rules file, loads it and registers it for change notifications
+	 * @param file the rules file or <code>null</code> when role mapping is not configured
+	 * @param watcherService the service used to watch the file for changes
+	 * @param changeListener called whenever the rules were reloaded after the initial load
+	 * @return the role mapper
+	 */
+	public static RoleMapper watch(final Path file, final ResourceWatcherService watcherService,
+			final Runnable changeListener) {
+		final RoleMapper mapper = new RoleMapper(file, changeListener);
+		if (file == null) {
+			return mapper;
+		}
+		mapper.load();
+		final FileWatcher watcher = new FileWatcher(file);
+		watcher.addListener(mapper.new FileListener());
+		try {
+			watcherService.add(watcher, ResourceWatcherService.Frequency.HIGH);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to watch role mapping " + file, e);
+		}
+		return mapper;
+	}
+
+	/**
+	 * Returns the roles of a user
+	 * @param userInfo the claims of the user
+	 * @return the roles in name order, never <code>null</code>
+	 */
+	public String[] map(final UserInfoResponse userInfo) {
+		return rules.map(userInfo.getGroups(), userInfo.getTenant(), userInfo.getEmail());
+	}
+
+	void reload() {
+		if (load()) {
+			changeListener.run();
+		}
+	}
+
+	/**
+	 * Loads the rules file
+	 * @return true if the rules were replaced
+	 */
+	private boolean load() {
+		if (!Files.exists(file)) {
+			rules = Rules.EMPTY;
+			log.debug("Role mapping {} does not exist", file);
+			return true;
+		}
+		try {
+			rules = Rules.compile(Settings.builder().loadFromPath(file).build());
+		} catch (Exception e) {
+			// keep the previous rules rather than stripping every user of its roles
+			log.error("Unable to load role mapping " + file + ", keeping the previous rules", e);
+			return false;
+		}
+		log.info("Loaded {} role mappings from {}", rules.roleCount, file);
+		return true;
+	}
+
+	/**
+	 * Splits the groups claim into its distinct group names in name order
+	 */
+	static Set<String> splitGroups(final String groups) {
+		final Set<String> names = new TreeSet<>();
+		if (groups == null) {
+			return names;
+		}
+		for (final String name : groups.split("[,\\s]+")) {
+			if (!name.isEmpty()) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * The compiled rules of one version of the file along with the roles memoized for them
+	 */
+	private static final class Rules {
+
+		static final Rules EMPTY = new Rules(ClaimMatcher.NONE, ClaimMatcher.NONE, ClaimMatcher.NONE, 0);
+
+		private final ClaimMatcher groups;
+		private final ClaimMatcher tenant;
+		private final ClaimMatcher email;
+		private final int roleCount;
+		private final ConcurrentMap<String, String[]> memoized = new ConcurrentHashMap<>();
+
+		Rules(ClaimMatcher groups, ClaimMatcher tenant, ClaimMatcher email, int roleCount) {
+			this.groups = groups;
+			this.tenant = tenant;
+			this.email = email;
+			this.roleCount = roleCount;
+		}
+
+		static Rules compile(final Settings settings) {
+			final Map<String, List<String>> groups = new HashMap<>();
+			final Map<String, List<String>> tenant = new HashMap<>();
+			final Map<String, List<String>> email = new HashMap<>();
+			final Set<String> roles = settings.names();
+			for (final String role : roles) {
+				groups.put(role, Arrays.asList(settings.getAsArray(role + ".groups")));
+				tenant.put(role, Arrays.asList(settings.getAsArray(role + ".tenant")));
+				email.put(role, Arrays.asList(settings.getAsArray(role + ".email")));
+			}
+			return new Rules(ClaimMatcher.compile(groups), ClaimMatcher.compile(tenant), ClaimMatcher.compile(email),
+					roles.size());
+		}
+
+		String[] map(final String groupsClaim, final Integer tenantClaim, final String emailClaim) {
+			if (roleCount == 0) {
+				return NO_ROLES;
+			}
+			// keyed by the distinct groups in name order, so that claims listing the same groups differently share an
+			// entry. Group names never contain the separator
+			final Set<String> groupNames = splitGroups(groupsClaim);
+			final String key = (tenantClaim == null ? "" : tenantClaim.toString()) + '|' + String.join(",", groupNames);
+			String[] shared = memoized.get(key);
+			if (shared == null) {
+				final Set<String> matched = new TreeSet<>();
+				for (final String group : groupNames) {
+					groups.match(group, matched);
+				}
+				if (tenantClaim != null) {
+					tenant.match(tenantClaim.toString(), matched);
+				}
+				shared = matched.toArray(NO_ROLES);
+				if (memoized.size() >= MAX_MEMOIZED) {
+					memoized.clear();
+				}
+				memoized.put(key, shared);
+			}
+			if (emailClaim == null || email.isEmpty()) {
+				return shared;
+			}
+			// the email claim is specific to the user and is never memoized
+			final Set<String> matched = new TreeSet<>(Arrays.asList(shared));
+			email.match(emailClaim, matched);
+			return matched.size() == shared.length ? shared : matched.toArray(NO_ROLES);
+		}
+	}
+
+	/**
+	 * The patterns of all roles for one claim
+	 */
+	private static final class ClaimMatcher {
+
+		static final ClaimMatcher NONE = new ClaimMatcher(Collections.emptyMap(), null, NO_ROLES,
+				new CharacterRunAutomaton[0]);
+
+		private final Map<String, String[]> exact;
+		private final CharacterRunAutomaton combined;
+		private final String[] patternRoles;
+		private final CharacterRunAutomaton[] patterns;
+
+		ClaimMatcher(Map<String, String[]> exact, CharacterRunAutomaton combined, String[] patternRoles,
+				CharacterRunAutomaton[] patterns) {
+			this.exact = exact;
+			this.combined = combined;
+			this.patternRoles = patternRoles;
+			this.patterns = patterns;
+		}
+
+		static ClaimMatcher compile(final Map<String, List<String>> patternsByRole) {
+			final Map<String, List<String>> exact = new HashMap<>();
+			final List<String> patternRoles = new ArrayList<>();
+			final List<CharacterRunAutomaton> patterns = new ArrayList<>();
+			final List<Automaton> all = new ArrayList<>();
+			for (final Map.Entry<String, List<String>> entry : patternsByRole.entrySet()) {
+				final List<Automaton> automata = new ArrayList<>();
+				for (final String pattern : entry.getValue()) {
+					if (pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+						automata.add(new RegExp(pattern.substring(1, pattern.length() - 1)).toAutomaton());
+					} else if (pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0) {
+						automata.add(WildcardQuery.toAutomaton(new Term("", pattern)));
+					} else {
+						exact.computeIfAbsent(pattern, value -> new ArrayList<>()).add(entry.getKey());
+					}
+				}
+				if (!automata.isEmpty()) {
+					final Automaton union = Operations.determinize(Operations.union(automata),
+							Operations.DEFAULT_MAX_DETERMINIZED_STATES);
+					patternRoles.add(entry.getKey());
+					patterns.add(new CharacterRunAutomaton(union));
+					all.add(union);
+				}
+			}
+			if (exact.isEmpty() && patterns.isEmpty()) {
+				return NONE;
+			}
+
+			final Map<String, String[]> exactRoles = new HashMap<>();
+			for (final Map.Entry<String, List<String>> entry : exact.entrySet()) {
+				exactRoles.put(entry.getKey(), entry.getValue().toArray(NO_ROLES));
+			}
+			final CharacterRunAutomaton combined = all.isEmpty() ? null : new CharacterRunAutomaton(
+					Operations.determinize(Operations.union(all), Operations.DEFAULT_MAX_DETERMINIZED_STATES));
+			return new ClaimMatcher(exactRoles, combined, patternRoles.toArray(NO_ROLES),
+					patterns.toArray(new CharacterRunAutomaton[patterns.size()]));
+		}
+
+		boolean isEmpty() {
+			return this == NONE;
+		}
+
+		void match(final String value, final Set<String> roles) {
+			final String[] exactRoles = exact.get(value);
+			if (exactRoles != null) {
+				Collections.addAll(roles, exactRoles);
+			}
+			if (combined == null || !combined.run(value)) {
+				return;
+			}
+			for (int i = 0; i < patterns.length; i++) {
+				if (patterns[i].run(value)) {
+					roles.add(patternRoles[i]);
+				}
+			}
+		}
+	}
+
+	private class FileListener implements FileChangesListener {
+
+		@Override
+		public void onFileCreated(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileDeleted(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileChanged(Path file) {
+			reload();
+		}
+	}
+}
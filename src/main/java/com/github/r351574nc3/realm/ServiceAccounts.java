@@ -0,0 +1,177 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.xpack.security.user.User;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Service accounts, such as the Kibana server user, that are authenticated against pre-hashed credentials in a local
+ * file instead of the oauth server. The file holds one account per line:
+ * <pre>
+ * name:salt:sha256:role1,role2
+ * </pre>
+ * where <code>sha256</code> is the hex encoded SHA-256 digest of the salt followed by the credential, as printed by
+ * <code>printf '%s%s' "$SALT" "$TOKEN" | sha256sum</code>. Salts must not contain <code>:</code>. Blank lines and lines
+ * starting with <code>#</code> are ignored.
+ *
+ * Credentials are compared in constant time. The file is watched through the {@link ResourceWatcherService} and the
+ * accounts are replaced as a whole whenever it changes.
+ */
+public class ServiceAccounts {
+
+	private static final Logger log = Loggers.getLogger(ServiceAccounts.class);
+
+	public static final String FILE_SETTING = "service_accounts.file";
+
+	private final Path file;
+	private volatile Map<String, Account> accounts = Collections.emptyMap();
+
+	ServiceAccounts(final Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Creates the service accounts for the given file, loads it and registers it for change notifications
+	 * @param file the service accounts file or <code>null</code> when service accounts are not configured
+	 * @param watcherService the service used to watch the file for changes
+	 * @return the service accounts
+	 */
+	public static ServiceAccounts watch(final Path file, final ResourceWatcherService watcherService) {
+		final ServiceAccounts serviceAccounts = new ServiceAccounts(file);
+		if (file == null) {
+			return serviceAccounts;
+		}
+		serviceAccounts.reload();
+		final FileWatcher watcher = new FileWatcher(file);
+		watcher.addListener(serviceAccounts.new FileListener());
+		try {
+			watcherService.add(watcher, ResourceWatcherService.Frequency.HIGH);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to watch service accounts " + file, e);
+		}
+		return serviceAccounts;
+	}
+
+	/**
+	 * Returns the service account with the given name
+	 * @param name the principal
+	 * @return the account or <code>null</code> if the principal is not a service account
+	 */
+	public Account get(final String name) {
+		return accounts.get(name);
+	}
+
+	void reload() {
+		if (!Files.exists(file)) {
+			accounts = Collections.emptyMap();
+			log.debug("Service accounts file {} does not exist", file);
+			return;
+		}
+
+		final Map<String, Account> loaded = new HashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] fields = line.split(":", 4);
+				final byte[] digest = fields.length < 3 ? null : CredentialDigests.fromHex(fields[2]);
+				if (digest == null || fields[0].isEmpty()) {
+					log.warn("Ignoring invalid service account on line {} of {}", number, file);
+					continue;
+				}
+				final String[] roles = fields.length < 4 || fields[3].trim().isEmpty() ? new String[0]
+						: fields[3].trim().split("\\s*,\\s*");
+				loaded.put(fields[0], new Account(fields[1].getBytes(StandardCharsets.UTF_8), digest,
+						new User(fields[0], roles)));
+			}
+		} catch (IOException e) {
+			// keep the previously loaded accounts rather than locking every service out
+			log.error("Unable to read service accounts " + file, e);
+			return;
+		}
+		accounts = Collections.unmodifiableMap(loaded);
+		log.info("Loaded {} service accounts from {}", loaded.size(), file);
+	}
+
+	/**
+	 * A service account and the salted digest of its credential
+	 */
+	public static final class Account {
+		private final byte[] salt;
+		private final byte[] digest;
+		private final User user;
+
+		Account(byte[] salt, byte[] digest, User user) {
+			this.salt = salt;
+			this.digest = digest;
+			this.user = user;
+		}
+
+		/**
+		 * Verifies a credential in constant time
+		 */
+		public boolean verify(final SecureString credential) {
+			return CredentialDigests.matches(digest, CredentialDigests.sha256(salt, credential));
+		}
+
+		public User user() {
+			return user;
+		}
+	}
+
+	private class FileListener implements FileChangesListener {
+
+		@Override
+		public void onFileCreated(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileDeleted(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileChanged(Path file) {
+			reload();
+		}
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A user cache that is split into one partition per tenant. Each partition has its own size quota and evicts only its
+ * own entries, so a tenant with many short lived users cannot push the hot entries of another tenant out of the cache.
+ *
+ * Lookups by principal go through a small index of the partition that owns each principal and never take a lock.
+ * Eviction within a partition is a second chance (clock) sweep over insertion order: an entry that was read since the
+ * last sweep is spared once.
+ *
+ * The heap taken by every entry is estimated when it is stored and accounted to a memory circuit breaker that bounds the
+ * cache as a whole. Above a soft limit, a fill first evicts from the partition that holds the most memory. When the hard
+ * limit is reached anyway the fill trips the breaker and the user is not cached, which costs a call to the oauth server
+ * instead of heap the node may need.
+ *
+ * Configured through the realm settings:
+ * <ul>
+ * <li><code>cache.ttl</code> time to live of an entry the realm gives no lifetime for (default 20m)</li>
+ * <li><code>cache.tenant.max_users</code> default quota of every tenant partition (default 10000)</li>
+ * <li><code>cache.tenant.quota.&lt;tenant&gt;</code> quota of a specific tenant partition</li>
+ * <li><code>cache.max_bytes</code> hard limit of the estimated heap used by the cache, in bytes or as a percentage of
+ * the heap (default 2%)</li>
+ * <li><code>cache.soft_limit</code> fraction of <code>cache.max_bytes</code> above which fills evict first (default
+ * 0.9)</li>
+ * </ul>
+ * @param <V> the type of the cached values
+ */
+public class TenantPartitionedCache<V extends Accountable> implements UserCache<V> {
+
+	public static final String TTL_SETTING = "cache.ttl";
+	public static final String MAX_USERS_SETTING = "cache.tenant.max_users";
+	public static final String QUOTA_SETTING_PREFIX = "cache.tenant.quota.";
+	public static final String MAX_BYTES_SETTING = "cache.max_bytes";
+	public static final String SOFT_LIMIT_SETTING = "cache.soft_limit";
+
+	/*
+	 * The partition of users that do not carry a tenant claim
+	 */
+	public static final String NO_TENANT = "_none";
+
+	public static final TimeValue DEFAULT_TTL = TimeValue.timeValueMinutes(20);
+	private static final int DEFAULT_MAX_USERS = 10000;
+	private static final String DEFAULT_MAX_BYTES = "2%";
+	private static final double DEFAULT_SOFT_LIMIT = 0.9d;
+
+	// a node of the entry map, of the owner index and of the sweep order is kept for every entry
+	private static final long NODE_SIZE = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+			+ Integer.BYTES + 3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+	private static final long ENTRY_OVERHEAD = RamUsageEstimator.shallowSizeOfInstance(Entry.class) + 3 * NODE_SIZE;
+	private static final long STRING_SIZE = RamUsageEstimator.shallowSizeOfInstance(String.class);
+
+	private final Settings settings;
+	private final long ttlNanos;
+	private final int defaultQuota;
+	private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Partition> owners = new ConcurrentHashMap<>();
+	private final MemoryCircuitBreaker breaker;
+	private final long softLimit;
+	private final LongAdder rejected = new LongAdder();
+
+	public TenantPartitionedCache(final Settings settings) {
+		this.settings = settings;
+		this.ttlNanos = settings.getAsTime(TTL_SETTING, DEFAULT_TTL).nanos();
+		this.defaultQuota = settings.getAsInt(MAX_USERS_SETTING, DEFAULT_MAX_USERS);
+		this.breaker = new MemoryCircuitBreaker(settings.getAsMemory(MAX_BYTES_SETTING, DEFAULT_MAX_BYTES), 1.0d,
+				Loggers.getLogger(TenantPartitionedCache.class));
+		final double softRatio = settings.getAsDouble(SOFT_LIMIT_SETTING, DEFAULT_SOFT_LIMIT);
+		if (softRatio <= 0 || softRatio > 1) {
+			throw new IllegalArgumentException("Invalid cache soft limit [" + softRatio + "]");
+		}
+		this.softLimit = (long) (breaker.getLimit() * softRatio);
+	}
+
+	@Override
+	public V get(final String principal) {
+		final Partition partition = owners.get(principal);
+		if (partition == null) {
+			return null;
+		}
+		return partition.get(principal);
+	}
+
+	@Override
+	public void put(final String principal, final Object tenant, final V value, final long ttlNanos) {
+		final long bytes = ENTRY_OVERHEAD + sizeOf(principal) + value.ramBytesUsed();
+		if (breaker.getUsed() + bytes > softLimit) {
+			reclaim(bytes);
+		}
+		try {
+			breaker.addEstimateBytesAndMaybeBreak(bytes, "custom realm user cache");
+		} catch (CircuitBreakingException e) {
+			rejected.increment();
+			return;
+		}
+
+		final String tenantKey = tenant == null ? NO_TENANT : tenant.toString();
+		final Partition partition = partitions.computeIfAbsent(tenantKey, Partition::new);
+		// the entry is stored before its owner is published, so it can always be found to be invalidated. An owner
+		// published first could be removed by an invalidation before the entry is stored, leaving the entry unreachable
+		// and its bytes accounted until the sweep evicts it
+		partition.put(principal, value, bytes, ttlNanos < 0 ? this.ttlNanos : ttlNanos);
+		final Partition previous = owners.put(principal, partition);
+		if (previous != null && previous != partition) {
+			previous.unlink(principal);
+		}
+	}
+
+	@Override
+	public void remove(final String principal, final V value) {
+		final Partition partition = owners.get(principal);
+		if (partition != null) {
+			partition.remove(principal, value);
+		}
+	}
+
+	@Override
+	public void invalidate(final String principal) {
+		final Partition partition = owners.remove(principal);
+		if (partition != null) {
+			partition.unlink(principal);
+		}
+	}
+
+	@Override
+	public void invalidateAll() {
+		// owners first, so that a principal stored concurrently is either cleared from its partition below, which also
+		// drops its owner, or stays cached with its owner
+		owners.clear();
+		for (final Partition partition : partitions.values()) {
+			partition.clear();
+		}
+	}
+
+	@Override
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		for (final Partition partition : partitions.values()) {
+			stats.put(partition.tenant, partition.stats());
+		}
+		return stats;
+	}
+
+	@Override
+	public Map<String, Object> memoryStats() {
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("used_bytes", breaker.getUsed());
+		stats.put("soft_limit_bytes", softLimit);
+		stats.put("limit_bytes", breaker.getLimit());
+		stats.put("tripped", breaker.getTrippedCount());
+		stats.put("rejected", rejected.sum());
+		return stats;
+	}
+
+	/**
+	 * Evicts from the partitions holding the most memory until an entry of the given size fits under the soft limit
+	 */
+	private void reclaim(final long incoming) {
+		for (int round = 0; round < partitions.size() && breaker.getUsed() + incoming > softLimit; round++) {
+			Partition heaviest = null;
+			for (final Partition partition : partitions.values()) {
+				if (heaviest == null || partition.bytes.get() > heaviest.bytes.get()) {
+					heaviest = partition;
+				}
+			}
+			if (heaviest == null || heaviest.bytes.get() == 0) {
+				return;
+			}
+			heaviest.evict(breaker.getUsed() + incoming - softLimit);
+		}
+	}
+
+	private static long sizeOf(final String string) {
+		return STRING_SIZE + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+				+ (long) Character.BYTES * string.length());
+	}
+
+	private static final class Entry<V> {
+		private final String principal;
+		private final V value;
+		private final long expiresAt;
+		private final long bytes;
+		private volatile boolean referenced;
+
+		Entry(String principal, V value, long expiresAt, long bytes) {
+			this.principal = principal;
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.bytes = bytes;
+		}
+	}
+
+	private final class Partition {
+		private final String tenant;
+		private final int quota;
+		private final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+		private final Queue<Entry<V>> order = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicLong bytes = new AtomicLong();
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+
+		Partition(String tenant) {
+			this.tenant = tenant;
+			this.quota = settings.getAsInt(QUOTA_SETTING_PREFIX + tenant, defaultQuota);
+		}
+
+		V get(final String principal) {
+			final Entry<V> entry = entries.get(principal);
+			if (entry == null) {
+				return null;
+			}
+			if (System.nanoTime() - entry.expiresAt > 0) {
+				remove(principal, entry.value);
+				return null;
+			}
+			if (!entry.referenced) {
+				entry.referenced = true;
+			}
+			hits.increment();
+			return entry.value;
+		}
+
+		void put(final String principal, final V value, final long size, final long ttl) {
+			// every fill follows a miss of this tenant's partition
+			misses.increment();
+			final Entry<V> entry = new Entry<>(principal, value, System.nanoTime() + ttl, size);
+			bytes.addAndGet(size);
+			final Entry<V> previous = entries.put(principal, entry);
+			if (previous != null) {
+				release(previous);
+			}
+			order.offer(entry);
+			queued.incrementAndGet();
+			if (entries.size() > quota || queued.get() > quota * 2) {
+				evict(0);
+			}
+		}
+
+		void remove(final String principal, final V value) {
+			final Entry<V> entry = entries.get(principal);
+			if (entry != null && entry.value == value && unlink(entry)) {
+				owners.remove(principal, this);
+			}
+		}
+
+		void unlink(final String principal) {
+			final Entry<V> entry = entries.remove(principal);
+			if (entry != null) {
+				release(entry);
+			}
+		}
+
+		private boolean unlink(final Entry<V> entry) {
+			if (entries.remove(entry.principal, entry)) {
+				release(entry);
+				return true;
+			}
+			return false;
+		}
+
+		private void release(final Entry<V> entry) {
+			bytes.addAndGet(-entry.bytes);
+			breaker.addWithoutBreaking(-entry.bytes);
+		}
+
+		void clear() {
+			synchronized (this) {
+				// the order is cleared first so that an entry stored concurrently is either unlinked below or still queued
+				order.clear();
+				queued.set(0);
+				for (final Entry<V> entry : entries.values()) {
+					if (unlink(entry)) {
+						owners.remove(entry.principal, this);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sweeps the partition until it is within its quota and at least the given number of bytes has been freed
+		 */
+		private synchronized void evict(final long bytesToFree) {
+			final long now = System.nanoTime();
+			// the sweep order also holds entries that were replaced, expired or invalidated since they were queued.
+			// When only those need trimming a single pass over the queue is enough
+			int trimBudget = queued.get();
+			// every live entry is visited at most twice, once to clear its reference bit and once to evict it
+			int sweepBudget = 2 * queued.get() + 1;
+			long freed = 0;
+			while ((entries.size() > quota || freed < bytesToFree || (queued.get() > quota * 2 && trimBudget-- > 0))
+					&& sweepBudget-- > 0) {
+				final Entry<V> entry = order.poll();
+				if (entry == null) {
+					return;
+				}
+				queued.decrementAndGet();
+				if (entries.get(entry.principal) != entry) {
+					continue;
+				}
+				if (entries.size() <= quota && freed >= bytesToFree) {
+					order.offer(entry);
+					queued.incrementAndGet();
+					continue;
+				}
+				if (entry.referenced && now - entry.expiresAt <= 0) {
+					entry.referenced = false;
+					order.offer(entry);
+					queued.incrementAndGet();
+					continue;
+				}
+				if (unlink(entry)) {
+					owners.remove(entry.principal, this);
+					evictions.increment();
+					freed += entry.bytes;
+				}
+			}
+		}
+
+		Map<String, Object> stats() {
+			final long hitCount = hits.sum();
+			final long missCount = misses.sum();
+			final long total = hitCount + missCount;
+			final Map<String, Object> stats = new HashMap<>();
+			stats.put("size", entries.size());
+			stats.put("quota", quota);
+			stats.put("memory_bytes", bytes.get());
+			stats.put("hits", hitCount);
+			stats.put("misses", missCount);
+			stats.put("evictions", evictions.sum());
+			stats.put("hit_ratio", total == 0 ? 0.0d : (double) hitCount / total);
+			return stats;
+		}
+	}
+}
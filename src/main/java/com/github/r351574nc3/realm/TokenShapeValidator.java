@@ -0,0 +1,173 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Local sanity check of an access token's shape that runs before any request is made to the oauth server. Tokens that
+ * are too short or too long, contain characters outside of the allowed set, are not structured as a JWT when one is
+ * required, or do not start with the configured issuer prefix are rejected without allocating or doing any I/O.
+ * The defaults accept any token that fits in an HTTP header, so the check only narrows down once the shape of the
+ * oauth server's tokens is configured.
+ *
+ * The check is configured through the realm settings:
+ * <ul>
+ * <li><code>token.min_length</code> minimum number of characters (default 1)</li>
+ * <li><code>token.max_length</code> maximum number of characters (default 8192)</li>
+ * <li><code>token.charset</code> one of <code>base64url</code>, <code>base64</code>, <code>hex</code> or
+ * <code>any</code> (default <code>any</code>). <code>base64url</code> also admits the <code>.</code> separator of a
+ * JWT. The issuer prefix is not subject to the charset</li>
+ * <li><code>token.jwt</code> whether the token must consist of three non-empty dot separated segments (default false)</li>
+ * <li><code>token.issuer_prefix</code> a literal prefix every token issued by the oauth server carries (default none)</li>
+ * </ul>
+ */
+public class TokenShapeValidator {
+
+	public static final String MIN_LENGTH_SETTING = "token.min_length";
+	public static final String MAX_LENGTH_SETTING = "token.max_length";
+	public static final String CHARSET_SETTING = "token.charset";
+	public static final String JWT_SETTING = "token.jwt";
+	public static final String ISSUER_PREFIX_SETTING = "token.issuer_prefix";
+
+	private static final int DEFAULT_MIN_LENGTH = 1;
+	// no longer token fits in a request under the default http.max_header_size
+	private static final int DEFAULT_MAX_LENGTH = 8192;
+	private static final String DEFAULT_CHARSET = "any";
+
+	private final int minLength;
+	private final int maxLength;
+	private final boolean[] allowed;
+	private final boolean jwt;
+	private final String issuerPrefix;
+
+	TokenShapeValidator(int minLength, int maxLength, String charset, boolean jwt, String issuerPrefix) {
+		if (minLength < 1 || maxLength < minLength) {
+			throw new IllegalArgumentException("Invalid token length bounds [" + minLength + ", " + maxLength + "]");
+		}
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.allowed = charsetTable(charset);
+		this.jwt = jwt;
+		this.issuerPrefix = issuerPrefix == null || issuerPrefix.isEmpty() ? null : issuerPrefix;
+	}
+
+	/**
+	 * Creates a validator from the settings of a realm
+	 * @param settings the realm specific settings
+	 * @return the validator
+	 */
+	public static TokenShapeValidator fromSettings(final Settings settings) {
+		return new TokenShapeValidator(settings.getAsInt(MIN_LENGTH_SETTING, DEFAULT_MIN_LENGTH),
+				settings.getAsInt(MAX_LENGTH_SETTING, DEFAULT_MAX_LENGTH),
+				settings.get(CHARSET_SETTING, DEFAULT_CHARSET),
+				settings.getAsBoolean(JWT_SETTING, false),
+				settings.get(ISSUER_PREFIX_SETTING));
+	}
+
+	/**
+	 * Checks the shape of the given token. The token is only read, never copied.
+	 * @param token the access token to check
+	 * @return true if the token could have been issued by the oauth server. false if it certainly was not
+	 */
+	public boolean accepts(final CharSequence token) {
+		if (token == null) {
+			return false;
+		}
+		final int length = token.length();
+		if (length < minLength || length > maxLength) {
+			return false;
+		}
+
+		int start = 0;
+		if (issuerPrefix != null) {
+			if (length < issuerPrefix.length()) {
+				return false;
+			}
+			for (int i = 0; i < issuerPrefix.length(); i++) {
+				if (token.charAt(i) != issuerPrefix.charAt(i)) {
+					return false;
+				}
+			}
+			start = issuerPrefix.length();
+		}
+
+		int dots = 0;
+		int segmentLength = 0;
+		for (int i = start; i < length; i++) {
+			final char c = token.charAt(i);
+			if (jwt && c == '.') {
+				if (segmentLength == 0) {
+					return false;
+				}
+				dots++;
+				segmentLength = 0;
+				continue;
+			}
+			if (allowed != null && (c >= allowed.length || !allowed[c])) {
+				return false;
+			}
+			segmentLength++;
+		}
+		return !jwt || (dots == 2 && segmentLength > 0);
+	}
+
+	/**
+	 * Builds a lookup table of the allowed ASCII characters or <code>null</code> when any character is allowed
+	 */
+	private static boolean[] charsetTable(final String charset) {
+		final boolean[] table = new boolean[128];
+		switch (charset) {
+		case "any":
+			return null;
+		case "hex":
+			mark(table, '0', '9');
+			mark(table, 'a', 'f');
+			mark(table, 'A', 'F');
+			return table;
+		case "base64":
+			mark(table, 'A', 'Z');
+			mark(table, 'a', 'z');
+			mark(table, '0', '9');
+			table['+'] = true;
+			table['/'] = true;
+			table['='] = true;
+			return table;
+		case "base64url":
+			mark(table, 'A', 'Z');
+			mark(table, 'a', 'z');
+			mark(table, '0', '9');
+			table['-'] = true;
+			table['_'] = true;
+			table['.'] = true;
+			table['~'] = true;
+			table['='] = true;
+			return table;
+		default:
+			throw new IllegalArgumentException("Unknown token charset [" + charset + "]");
+		}
+	}
+
+	private static void mark(final boolean[] table, final char from, final char to) {
+		for (char c = from; c <= to; c++) {
+			table[c] = true;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.lucene.util.Accountable;
+
+import java.util.Map;
+
+/**
+ * The storage behind {@link CustomCachingRealm}. Entries are keyed by principal and accounted to the tenant of the
+ * user so that implementations can enforce per tenant quotas and report per tenant stats. Values estimate their own heap
+ * size so that implementations can bound the memory they hold.
+ * @param <V> the type of the cached values
+ */
+public interface UserCache<V extends Accountable> {
+
+	/**
+	 * Returns the cached value for a principal
+	 * @param principal the principal
+	 * @return the value or <code>null</code> if the principal is not cached or its entry has expired
+	 */
+	V get(String principal);
+
+	/**
+	 * Caches a value for a principal
+	 * @param principal the principal
+	 * @param tenant the tenant of the principal or <code>null</code> for none
+	 * @param value the value to cache
+	 * @param ttlNanos how long the entry lives in nanoseconds, or a negative value for the configured time to live
+	 */
+	void put(String principal, Object tenant, V value, long ttlNanos);
+
+	/**
+	 * Removes the entry of a principal, but only while it still holds the given value
+	 */
+	void remove(String principal, V value);
+
+	/**
+	 * Removes the entry of a principal
+	 */
+	void invalidate(String principal);
+
+	/**
+	 * Removes all entries
+	 */
+	void invalidateAll();
+
+	/**
+	 * Returns the stats of the cache keyed by tenant
+	 */
+	Map<String, Object> stats();
+
+	/**
+	 * Returns the memory used by the cache and the limits it is held to
+	 */
+	Map<String, Object> memoryStats();
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import com.github.r351574nc3.realm.userinfo.UserInfoResponse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * An in memory index by username of a user directory export, used to look up users for run as without contacting the
+ * oauth server. The export is either a JSON array of userinfo objects or, for files ending in <code>.csv</code>, a CSV
+ * file with a header row naming the <code>username</code>, <code>name</code>, <code>email</code>, <code>groups</code>,
+ * <code>tenant</code> and <code>sub</code> columns.
+ *
+ * The file is watched through the {@link ResourceWatcherService}. On a change it is parsed again and only the entries
+ * that were added, modified or removed are applied to the index, each of them reported to the change listener so that
+ * cached copies can be expired. A file that cannot be parsed leaves the index as it was.
+ */
+public class UserDirectory {
+
+	private static final Logger log = Loggers.getLogger(UserDirectory.class);
+
+	public static final String FILE_SETTING = "directory.file";
+
+	private final Path file;
+	private final Consumer<String> changeListener;
+	private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<>();
+
+	UserDirectory(final Path file, final Consumer<String> changeListener) {
+		this.file = file;
+		this.changeListener = changeListener;
+	}
+
+	/**
+	 * Creates a directory for the given export, loads it and registers it for change notifications
+	 * @param file the directory export
+	 * @param watcherService the service used to watch the file for changes
+	 * @param changeListener called with the username of every entry that changed after the initial load
+	 * @return the directory
+	 */
+	public static UserDirectory watch(final Path file, final ResourceWatcherService watcherService,
+			final Consumer<String> changeListener) {
+		final UserDirectory directory = new UserDirectory(file, changeListener);
+		directory.reload();
+		final FileWatcher watcher = new FileWatcher(file);
+		watcher.addListener(directory.new FileListener());
+		try {
+			watcherService.add(watcher, ResourceWatcherService.Frequency.HIGH);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to watch user directory " + file, e);
+		}
+		return directory;
+	}
+
+	/**
+	 * Looks up a user by username
+	 * @param username the username
+	 * @return the userinfo of the user or <code>null</code> if the user is not in the directory
+	 */
+	public UserInfoResponse lookup(final String username) {
+		final Entry entry = index.get(username);
+		return entry == null ? null : entry.toUserInfo(username);
+	}
+
+	/**
+	 * Returns the number of users in the directory
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	void reload() {
+		final Map<String, Entry> entries;
+		if (!Files.exists(file)) {
+			entries = new HashMap<>();
+		} else {
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				entries = file.getFileName().toString().endsWith(".csv") ? parseCsv(reader) : parseJson(reader);
+			} catch (Exception e) {
+				log.error("Unable to load user directory " + file + ", keeping the previous snapshot", e);
+				return;
+			}
+		}
+
+		int changes = 0;
+		for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+			final Entry previous = index.put(entry.getKey(), entry.getValue());
+			if (previous != null && !previous.equals(entry.getValue())) {
+				changes++;
+				changeListener.accept(entry.getKey());
+			} else if (previous == null) {
+				changes++;
+			}
+		}
+		for (final String username : index.keySet()) {
+			if (!entries.containsKey(username)) {
+				index.remove(username);
+				changes++;
+				changeListener.accept(username);
+			}
+		}
+		log.info("Applied {} changes from user directory {}, {} users", changes, file, index.size());
+	}
+
+	private static Map<String, Entry> parseJson(final Reader reader) throws Exception {
+		final Collection<UserInfoResponse> users;
+		try {
+			users = AccessController.doPrivileged((PrivilegedExceptionAction<Collection<UserInfoResponse>>) () ->
+					JacksonFactory.getDefaultInstance().createJsonParser(reader)
+							.parseArray(ArrayList.class, UserInfoResponse.class));
+		} catch (PrivilegedActionException e) {
+			throw e.getException();
+		}
+		final Map<String, Entry> entries = new HashMap<>();
+		for (final UserInfoResponse user : users) {
+			if (user.getUsername() != null) {
+				entries.put(user.getUsername(), new Entry(user.getName(), user.getEmail(), user.getGroups(),
+						user.getTenant(), user.getSub()));
+			}
+		}
+		return entries;
+	}
+
+	private static Map<String, Entry> parseCsv(final BufferedReader reader) throws IOException {
+		final Map<String, Entry> entries = new HashMap<>();
+		final String header = reader.readLine();
+		if (header == null) {
+			return entries;
+		}
+		final List<String> columns = splitCsv(header);
+		final int username = columns.indexOf("username");
+		if (username < 0) {
+			throw new IOException("User directory header has no username column");
+		}
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			final List<String> values = splitCsv(line);
+			final String name = column(values, username);
+			if (name == null) {
+				continue;
+			}
+			final String tenant = column(values, columns.indexOf("tenant"));
+			entries.put(name, new Entry(column(values, columns.indexOf("name")),
+					column(values, columns.indexOf("email")), column(values, columns.indexOf("groups")),
+					tenant == null ? null : Integer.valueOf(tenant), column(values, columns.indexOf("sub"))));
+		}
+		return entries;
+	}
+
+	private static String column(final List<String> values, final int index) {
+		if (index < 0 || index >= values.size() || values.get(index).isEmpty()) {
+			return null;
+		}
+		return values.get(index);
+	}
+
+	/**
+	 * Splits a CSV line, honouring double quoted fields with doubled quotes as escapes
+	 */
+	static List<String> splitCsv(final String line) {
+		final List<String> values = new ArrayList<>();
+		final StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					value.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					value.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				values.add(value.toString().trim());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString().trim());
+		return values;
+	}
+
+	/**
+	 * The claims of a directory user, kept without the overhead of a parsed JSON object
+	 */
+	private static final class Entry {
+		private final String name;
+		private final String email;
+		private final String groups;
+		private final Integer tenant;
+		private final String sub;
+
+		Entry(String name, String email, String groups, Integer tenant, String sub) {
+			this.name = name;
+			this.email = email;
+			this.groups = groups;
+			this.tenant = tenant;
+			this.sub = sub;
+		}
+
+		UserInfoResponse toUserInfo(final String username) {
+			final UserInfoResponse userInfo = new UserInfoResponse();
+			userInfo.setUsername(username);
+			userInfo.setName(name);
+			userInfo.setEmail(email);
+			userInfo.setGroups(groups);
+			userInfo.setTenant(tenant);
+			userInfo.setSub(sub);
+			return userInfo;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || getClass() != o.getClass()) {
+				return false;
+			}
+			final Entry entry = (Entry) o;
+			return Objects.equals(name, entry.name) && Objects.equals(email, entry.email)
+					&& Objects.equals(groups, entry.groups) && Objects.equals(tenant, entry.tenant)
+					&& Objects.equals(sub, entry.sub);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(name, email, groups, tenant, sub);
+		}
+	}
+
+	private class FileListener implements FileChangesListener {
+
+		@Override
+		public void onFileCreated(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileDeleted(Path file) {
+			reload();
+		}
+
+		@Override
+		public void onFileChanged(Path file) {
+			reload();
+		}
+	}
+}
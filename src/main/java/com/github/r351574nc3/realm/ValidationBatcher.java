@@ -0,0 +1,326 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.apache.logging.log4j.Logger;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+
+import com.github.r351574nc3.realm.userinfo.IntrospectionResponse;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the tokens that need validating into micro batches for the bulk validation endpoint of the oauth server.
+ * A token waits for at most the configured time, or until the batch is full, before its batch is sent as one request;
+ * each result is then handed to the listener of its authentication, in the thread context it was validated in, by the
+ * thread that sent the batch. No thread waits for a result. Batches are sent by a fixed number of background threads,
+ * so several batches can be in flight at once, and an authentication whose result does not arrive in time fails with
+ * an {@link ElasticsearchTimeoutException} however long its batch takes.
+ *
+ * Configured through the realm settings:
+ * <ul>
+ * <li><code>validation.batch.max_size</code> tokens per batch (default 64)</li>
+ * <li><code>validation.batch.max_wait</code> longest time a token waits for its batch to fill (default 5ms)</li>
+ * <li><code>validation.batch.concurrency</code> number of batches in flight (default 2)</li>
+ * <li><code>validation.batch.timeout</code> longest time a token waits for its result (default 30s)</li>
+ * </ul>
+ */
+public class ValidationBatcher {
+
+	private static final Logger log = Loggers.getLogger(ValidationBatcher.class);
+
+	public static final String MAX_SIZE_SETTING = "validation.batch.max_size";
+	public static final String MAX_WAIT_SETTING = "validation.batch.max_wait";
+	public static final String CONCURRENCY_SETTING = "validation.batch.concurrency";
+	public static final String TIMEOUT_SETTING = "validation.batch.timeout";
+
+	private static final int DEFAULT_MAX_SIZE = 64;
+	private static final TimeValue DEFAULT_MAX_WAIT = TimeValue.timeValueMillis(5);
+	private static final int DEFAULT_CONCURRENCY = 2;
+	private static final TimeValue DEFAULT_TIMEOUT = TimeValue.timeValueSeconds(30);
+
+	/**
+	 * Validates a batch of tokens with one request to the oauth server
+	 */
+	@FunctionalInterface
+	public interface BulkValidator {
+		/**
+		 * @param tokens the tokens to validate
+		 * @return one result per token, in the order of the tokens
+		 */
+		List<IntrospectionResponse> validate(List<String> tokens) throws Exception;
+	}
+
+	private final BulkValidator validator;
+	private final int maxSize;
+	private final long maxWaitNanos;
+	private final int concurrency;
+	private final long timeoutNanos;
+	private final ThreadContext threadContext;
+	// fails the tokens whose result did not arrive in time
+	private final ScheduledExecutorService scheduler;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+	private final List<Thread> senders = new CopyOnWriteArrayList<>();
+	private volatile boolean closed;
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder tokens = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+
+	ValidationBatcher(BulkValidator validator, Settings settings, ThreadContext threadContext,
+			ScheduledExecutorService scheduler) {
+		this.validator = validator;
+		this.maxSize = settings.getAsInt(MAX_SIZE_SETTING, DEFAULT_MAX_SIZE);
+		this.maxWaitNanos = settings.getAsTime(MAX_WAIT_SETTING, DEFAULT_MAX_WAIT).nanos();
+		this.concurrency = settings.getAsInt(CONCURRENCY_SETTING, DEFAULT_CONCURRENCY);
+		this.timeoutNanos = settings.getAsTime(TIMEOUT_SETTING, DEFAULT_TIMEOUT).nanos();
+		if (maxSize < 1 || maxWaitNanos < 0 || concurrency < 1 || timeoutNanos < 1) {
+			throw new IllegalArgumentException("Invalid validation batch configuration");
+		}
+		this.threadContext = threadContext != null ? threadContext : new ThreadContext(Settings.EMPTY);
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Creates the batcher of a realm and starts its sender threads, which are stopped by {@link #close()}
+	 * @param config the configuration of the realm
+	 * @param validator sends a batch to the oauth server
+	 * @param scheduler the scheduler of the realm, which times the tokens out
+	 * @return the batcher
+	 */
+	public static ValidationBatcher start(final RealmConfig config, final BulkValidator validator,
+			final ScheduledExecutorService scheduler) {
+		final ValidationBatcher batcher = new ValidationBatcher(validator, config.settings(), config.threadContext(),
+				scheduler);
+		AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+			for (int i = 0; i < batcher.concurrency; i++) {
+				final Thread sender = new Thread(batcher::run, "custom-realm-batcher[" + config.name() + "][" + i + "]");
+				sender.setDaemon(true);
+				batcher.senders.add(sender);
+				sender.start();
+			}
+			return null;
+		});
+		return batcher;
+	}
+
+	/**
+	 * Validates a token as part of the next batch without blocking
+	 * @param token the token to validate
+	 * @param listener notified by the thread that sent the batch with the result of the oauth server for the token or
+	 *        the failure of the batch, or with an {@link ElasticsearchTimeoutException} when the result did not arrive in
+	 *        time
+	 */
+	public void validate(final String token, final ActionListener<IntrospectionResponse> listener) {
+		final Pending pending = new Pending(token,
+				new ContextPreservingActionListener<>(threadContext.newRestorableContext(false), listener));
+		if (closed) {
+			pending.fail(closedException());
+			return;
+		}
+		try {
+			pending.timeout = scheduler.schedule(() -> {
+				if (pending.finish()) {
+					timeouts.increment();
+					pending.listener.onFailure(new ElasticsearchTimeoutException("No bulk validation result within [{}]",
+							TimeValue.timeValueNanos(timeoutNanos)));
+				}
+			}, timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			pending.fail(closedException());
+			return;
+		}
+		queue.add(pending);
+		if (closed) {
+			// close() may have drained the queue before the token was added
+			failQueued();
+		}
+	}
+
+	/**
+	 * Stops the sender threads and fails the tokens that were not sent yet
+	 */
+	public void close() {
+		closed = true;
+		for (final Thread sender : senders) {
+			sender.interrupt();
+		}
+		failQueued();
+	}
+
+	/**
+	 * Returns the number of batches sent and tokens validated
+	 */
+	public Map<String, Object> stats() {
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("batches", batches.sum());
+		stats.put("tokens", tokens.sum());
+		stats.put("queued", queue.size());
+		stats.put("timeouts", timeouts.sum());
+		return stats;
+	}
+
+	/**
+	 * Sends batches until the thread is interrupted or the batcher is closed. Run by every sender thread.
+	 */
+	void run() {
+		final List<Pending> batch = new ArrayList<>(maxSize);
+		final List<String> batchTokens = new ArrayList<>(maxSize);
+		while (closed == false) {
+			try {
+				final Pending first = queue.take();
+				if (first.isDone()) {
+					continue;
+				}
+				batch.add(first);
+				final long deadline = System.nanoTime() + maxWaitNanos;
+				while (batch.size() < maxSize) {
+					final Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					// tokens that timed out while queued are not sent
+					if (next.isDone() == false) {
+						batch.add(next);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(batch, e);
+				return;
+			}
+			for (final Pending pending : batch) {
+				batchTokens.add(pending.token);
+			}
+			send(batch, batchTokens);
+			batch.clear();
+			batchTokens.clear();
+		}
+	}
+
+	private void send(final List<Pending> batch, final List<String> batchTokens) {
+		final List<IntrospectionResponse> results;
+		try {
+			results = validator.validate(batchTokens);
+		} catch (Exception e) {
+			if (e instanceof InterruptedException) {
+				// the sender is being stopped
+				Thread.currentThread().interrupt();
+			}
+			log.debug("Bulk validation of {} tokens failed", batch.size());
+			fail(batch, e);
+			return;
+		}
+		if (results == null || results.size() != batch.size()) {
+			// a missing result must not leave its authentication waiting forever, nor stop the sender thread
+			fail(batch, new IllegalStateException("Bulk validation answered " + (results == null ? 0 : results.size())
+					+ " results for " + batch.size() + " tokens"));
+			return;
+		}
+		batches.increment();
+		tokens.add(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			batch.get(i).complete(results.get(i));
+		}
+	}
+
+	private void failQueued() {
+		final List<Pending> queued = new ArrayList<>();
+		queue.drainTo(queued);
+		fail(queued, closedException());
+	}
+
+	private static void fail(final List<Pending> batch, final Exception e) {
+		for (final Pending pending : batch) {
+			pending.fail(e);
+		}
+	}
+
+	private static EsRejectedExecutionException closedException() {
+		return new EsRejectedExecutionException("bulk validation is closed");
+	}
+
+	/**
+	 * A token waiting for its result, which is delivered to its listener once, by its batch or by its timeout
+	 */
+	private static final class Pending {
+		private final String token;
+		private final ActionListener<IntrospectionResponse> listener;
+		private final AtomicBoolean done = new AtomicBoolean();
+		private volatile ScheduledFuture<?> timeout;
+
+		Pending(String token, ActionListener<IntrospectionResponse> listener) {
+			this.token = token;
+			this.listener = listener;
+		}
+
+		boolean isDone() {
+			return done.get();
+		}
+
+		void complete(final IntrospectionResponse result) {
+			if (finish()) {
+				listener.onResponse(result);
+			}
+		}
+
+		void fail(final Exception e) {
+			if (finish()) {
+				listener.onFailure(e);
+			}
+		}
+
+		/**
+		 * Marks the result as delivered, returning whether the caller is the one to deliver it
+		 */
+		boolean finish() {
+			if (done.compareAndSet(false, true) == false) {
+				return false;
+			}
+			final ScheduledFuture<?> scheduled = timeout;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.github.r351574nc3.realm.userinfo;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Request to the bulk token validation endpoint of the auth server, which validates many tokens in
+ * one call. The tokens are posted as repeated <code>token</code> form parameters and the realm
+ * authenticates itself with its client credentials like an {@link IntrospectionRequest}. The server
+ * answers with one introspection result per token, in the order of the tokens:
+ *
+ * <pre>
+ * { "results": [ { "active": true, "sub": "...", "email": "..." }, { "active": false } ] }
+ * </pre>
+ */
+public class BulkValidationRequest extends UserInfoRequest {
+
+  /** The tokens to validate. */
+  @Key("token")
+  private List<String> tokens;
+
+  /**
+   * @param transport HTTP transport
+   * @param jsonFactory JSON factory
+   * @param serverUrl bulk validation endpoint URL
+   * @param tokens the tokens to validate
+   */
+  public BulkValidationRequest(HttpTransport transport, JsonFactory jsonFactory, GenericUrl serverUrl,
+      List<String> tokens) {
+    super(transport, jsonFactory, serverUrl);
+    this.tokens = tokens;
+  }
+
+  /** Returns the tokens to validate. */
+  public final List<String> getTokens() {
+    return tokens;
+  }
+
+  /**
+   * Executes the bulk validation request and returns the parsed response.
+   *
+   * @return parsed bulk validation response
+   * @throws UserInfoResponseException for an error response
+   * @throws IOException if the response does not hold one result per token
+   */
+  @Override
+  public BulkValidationResponse execute() throws IOException {
+    final HttpResponse response = executeUnparsed();
+    final long parseStart = System.nanoTime();
+    final BulkValidationResponse bulk = response.parseAs(BulkValidationResponse.class);
+    bulk.setParseNanos(System.nanoTime() - parseStart);
+    if (bulk.getResults() == null || bulk.getResults().size() != tokens.size()) {
+      throw new IOException("Bulk validation answered " + (bulk.getResults() == null ? 0
+          : bulk.getResults().size()) + " results for " + tokens.size() + " tokens");
+    }
+    return bulk;
+  }
+
+  @Override
+  public BulkValidationRequest setRequestInitializer(HttpRequestInitializer requestInitializer) {
+    return (BulkValidationRequest) super.setRequestInitializer(requestInitializer);
+  }
+
+  @Override
+  public BulkValidationRequest setClientAuthentication(HttpExecuteInterceptor clientAuthentication) {
+    return (BulkValidationRequest) super.setClientAuthentication(clientAuthentication);
+  }
+
+  @Override
+  public BulkValidationRequest set(String fieldName, Object value) {
+    return (BulkValidationRequest) super.set(fieldName, value);
+  }
+}
@@ -0,0 +1,32 @@
+package com.github.r351574nc3.realm.userinfo;
+
+import com.google.api.client.util.Key;
+
+import java.util.List;
+
+/**
+ * Response of the bulk token validation endpoint, holding one {@link IntrospectionResponse} per
+ * validated token in the order the tokens were sent. The response itself carries no user claims.
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+public class BulkValidationResponse extends UserInfoResponse {
+
+  @Key("results")
+  protected List<IntrospectionResponse> results;
+
+  public void setResults(final List<IntrospectionResponse> results) {
+    this.results = results;
+  }
+
+  public List<IntrospectionResponse> getResults() {
+    return this.results;
+  }
+
+  @Override
+  public BulkValidationResponse clone() {
+    return (BulkValidationResponse) super.clone();
+  }
+}
@@ -0,0 +1,55 @@
+package com.github.r351574nc3.realm.userinfo;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+
+import java.util.List;
+
+/**
+ * A modification of users at the auth server, such as a change of their groups or claims, as
+ * reported by its change feed:
+ *
+ * <pre>
+ * { "users": [ "alice", "bob" ] }
+ * { "all": true }
+ * </pre>
+ *
+ * <p>
+ * An event naming no users but {@code all} affects every user, for changes such as the renaming
+ * of a group whose members the server does not list.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+public class ChangeEvent extends GenericJson {
+
+  @Key("users")
+  protected List<String> users;
+
+  @Key("all")
+  protected Boolean all;
+
+  public void setUsers(final List<String> users) {
+    this.users = users;
+  }
+
+  public List<String> getUsers() {
+    return this.users;
+  }
+
+  public void setAll(final Boolean all) {
+    this.all = all;
+  }
+
+  /** Whether the event affects every user. */
+  public boolean isAll() {
+    return Boolean.TRUE.equals(this.all);
+  }
+
+  @Override
+  public ChangeEvent clone() {
+    return (ChangeEvent) super.clone();
+  }
+}
@@ -0,0 +1,80 @@
+package com.github.r351574nc3.realm.userinfo;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+
+import java.io.IOException;
+
+/**
+ * Request to the change feed endpoint of the auth server for the user modifications recorded
+ * since a cursor. The cursor of the previous response is posted as the <code>since</code> form
+ * parameter, or none for the first request, and the realm authenticates itself with its client
+ * credentials like an {@link IntrospectionRequest}. The server answers with the events and the
+ * cursor to continue from:
+ *
+ * <pre>
+ * { "cursor": "1042", "events": [ { "users": [ "alice" ] }, { "all": true } ] }
+ * </pre>
+ */
+public class ChangeFeedRequest extends UserInfoRequest {
+
+  /** The cursor of the previous response or {@code null} for none. */
+  @Key("since")
+  private String since;
+
+  /**
+   * @param transport HTTP transport
+   * @param jsonFactory JSON factory
+   * @param serverUrl change feed endpoint URL
+   * @param since the cursor of the previous response or {@code null} for none
+   */
+  public ChangeFeedRequest(HttpTransport transport, JsonFactory jsonFactory, GenericUrl serverUrl,
+      String since) {
+    super(transport, jsonFactory, serverUrl);
+    this.since = since;
+  }
+
+  /** Returns the cursor of the previous response or {@code null} for none. */
+  public final String getSince() {
+    return since;
+  }
+
+  /**
+   * Executes the change feed request and returns the parsed response.
+   *
+   * @return parsed change feed response
+   * @throws UserInfoResponseException for an error response
+   * @throws IOException if the response holds no cursor
+   */
+  @Override
+  public ChangeFeedResponse execute() throws IOException {
+    final HttpResponse response = executeUnparsed();
+    final long parseStart = System.nanoTime();
+    final ChangeFeedResponse changes = response.parseAs(ChangeFeedResponse.class);
+    changes.setParseNanos(System.nanoTime() - parseStart);
+    if (changes.getCursor() == null) {
+      throw new IOException("Change feed answered without a cursor");
+    }
+    return changes;
+  }
+
+  @Override
+  public ChangeFeedRequest setRequestInitializer(HttpRequestInitializer requestInitializer) {
+    return (ChangeFeedRequest) super.setRequestInitializer(requestInitializer);
+  }
+
+  @Override
+  public ChangeFeedRequest setClientAuthentication(HttpExecuteInterceptor clientAuthentication) {
+    return (ChangeFeedRequest) super.setClientAuthentication(clientAuthentication);
+  }
+
+  @Override
+  public ChangeFeedRequest set(String fieldName, Object value) {
+    return (ChangeFeedRequest) super.set(fieldName, value);
+  }
+}
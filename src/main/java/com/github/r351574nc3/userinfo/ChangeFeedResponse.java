@@ -0,0 +1,44 @@
+package com.github.r351574nc3.realm.userinfo;
+
+import com.google.api.client.util.Key;
+
+import java.util.List;
+
+/**
+ * Response of the change feed endpoint, holding the {@link ChangeEvent}s recorded since the
+ * requested cursor and the cursor to request the following events with. The response itself
+ * carries no user claims.
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+public class ChangeFeedResponse extends UserInfoResponse {
+
+  @Key("cursor")
+  protected String cursor;
+
+  @Key("events")
+  protected List<ChangeEvent> events;
+
+  public void setCursor(final String cursor) {
+    this.cursor = cursor;
+  }
+
+  public String getCursor() {
+    return this.cursor;
+  }
+
+  public void setEvents(final List<ChangeEvent> events) {
+    this.events = events;
+  }
+
+  public List<ChangeEvent> getEvents() {
+    return this.events;
+  }
+
+  @Override
+  public ChangeFeedResponse clone() {
+    return (ChangeFeedResponse) super.clone();
+  }
+}
@@ -0,0 +1,76 @@
+package com.github.r351574nc3.realm.userinfo;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+
+import java.io.IOException;
+
+/**
+ * Request to the token introspection endpoint of the auth server as specified in <a
+ * href="https://tools.ietf.org/html/rfc7662#section-2.1">RFC 7662</a>. The token is posted as a form
+ * parameter and the realm authenticates itself with its client credentials, so the request is built
+ * exactly like a {@link UserInfoRequest} and only differs in its parameters and response.
+ */
+public class IntrospectionRequest extends UserInfoRequest {
+
+  /** The token to introspect. */
+  @Key("token")
+  private String token;
+
+  /** Hint about the type of the token, always an access token. */
+  @Key("token_type_hint")
+  private String tokenTypeHint = "access_token";
+
+  /**
+   * @param transport HTTP transport
+   * @param jsonFactory JSON factory
+   * @param serverUrl introspection endpoint URL
+   * @param token the token to introspect
+   */
+  public IntrospectionRequest(HttpTransport transport, JsonFactory jsonFactory, GenericUrl serverUrl,
+      String token) {
+    super(transport, jsonFactory, serverUrl);
+    this.token = token;
+  }
+
+  /** Returns the token to introspect. */
+  public final String getToken() {
+    return token;
+  }
+
+  /**
+   * Executes the introspection request and returns the parsed response. An inactive token is a
+   * successful response with {@link IntrospectionResponse#isActive()} false.
+   *
+   * @return parsed introspection response
+   * @throws UserInfoResponseException for an error response
+   */
+  @Override
+  public IntrospectionResponse execute() throws IOException {
+    final HttpResponse response = executeUnparsed();
+    final long parseStart = System.nanoTime();
+    final IntrospectionResponse introspection = response.parseAs(IntrospectionResponse.class);
+    introspection.setParseNanos(System.nanoTime() - parseStart);
+    return introspection;
+  }
+
+  @Override
+  public IntrospectionRequest setRequestInitializer(HttpRequestInitializer requestInitializer) {
+    return (IntrospectionRequest) super.setRequestInitializer(requestInitializer);
+  }
+
+  @Override
+  public IntrospectionRequest setClientAuthentication(HttpExecuteInterceptor clientAuthentication) {
+    return (IntrospectionRequest) super.setClientAuthentication(clientAuthentication);
+  }
+
+  @Override
+  public IntrospectionRequest set(String fieldName, Object value) {
+    return (IntrospectionRequest) super.set(fieldName, value);
+  }
+}
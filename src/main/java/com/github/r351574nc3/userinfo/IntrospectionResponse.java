@@ -0,0 +1,87 @@
+package com.github.r351574nc3.realm.userinfo;
+
+import com.google.api.client.util.Key;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token introspection response as specified in <a
+ * href="https://tools.ietf.org/html/rfc7662#section-2.2">RFC 7662</a>. Besides the standard
+ * <code>active</code>, <code>exp</code> and <code>scope</code> members it carries the same user
+ * claims as a {@link UserInfoResponse}, which the auth server may add to the response.
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+public class IntrospectionResponse extends UserInfoResponse {
+
+  @Key("active")
+  protected Boolean active;
+
+  @Key("exp")
+  protected Long exp;
+
+  @Key("scope")
+  protected String scope;
+
+  @Key("client_id")
+  protected String clientId;
+
+  public void setActive(final Boolean active) {
+    this.active = active;
+  }
+
+  /**
+   * Whether the token is active. A token whose <code>exp</code> has passed is never active, whatever
+   * the auth server answered.
+   */
+  public boolean isActive() {
+    return Boolean.TRUE.equals(active) && (exp == null || expiresInMillis() > 0);
+  }
+
+  public void setExp(final Long exp) {
+    this.exp = exp;
+  }
+
+  /**
+   * Returns the expiry of the token in seconds since the epoch or {@code null} if the auth server
+   * did not send one.
+   */
+  public Long getExp() {
+    return this.exp;
+  }
+
+  /**
+   * Returns the number of milliseconds until the token expires.
+   *
+   * @throws IllegalStateException if the response has no <code>exp</code>
+   */
+  public long expiresInMillis() {
+    if (exp == null) {
+      throw new IllegalStateException("Introspection response has no exp");
+    }
+    return TimeUnit.SECONDS.toMillis(exp) - System.currentTimeMillis();
+  }
+
+  public void setScope(final String scope) {
+    this.scope = scope;
+  }
+
+  public String getScope() {
+    return this.scope;
+  }
+
+  public void setClientId(final String clientId) {
+    this.clientId = clientId;
+  }
+
+  public String getClientId() {
+    return this.clientId;
+  }
+
+  @Override
+  public IntrospectionResponse clone() {
+    return (IntrospectionResponse) super.clone();
+  }
+}
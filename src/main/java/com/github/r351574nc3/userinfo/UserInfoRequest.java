@@ -13,6 +13,7 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.UrlEncodedContent;
 import com.google.api.client.json.JsonFactory;
@@ -57,6 +58,15 @@ public class UserInfoRequest extends GenericData {
   @Key("scope")
   private String scopes;
 
+  /** Whether the request is sent as a {@code GET} without a body. */
+  private boolean get;
+
+  /** Entity tag of a previously received response or {@code null} for none. */
+  private String ifNoneMatch;
+
+  /** Last modification date of a previously received response or {@code null} for none. */
+  private String ifModifiedSince;
+
   /**
    * @param transport HTTP transport
    * @param jsonFactory JSON factory
@@ -174,6 +184,47 @@ public class UserInfoRequest extends GenericData {
     return this;
   }
 
+  /** Whether the request is sent as a {@code GET} without a body rather than a form {@code POST}. */
+  public final boolean isGet() {
+    return get;
+  }
+
+  /**
+   * Sends the request as a {@code GET} without a body, authenticated by the bearer token of the
+   * client authentication alone. Unlike a {@code POST}, a {@code GET} is idempotent, so it may be
+   * retried after a transport error and served by intermediary caches.
+   *
+   * <p>
+   * Overriding is only supported for the purpose of calling the super implementation and changing
+   * the return type, but nothing else.
+   * </p>
+   */
+  public UserInfoRequest setGet(boolean get) {
+    this.get = get;
+    return this;
+  }
+
+  /** Whether the request is made conditional by validators of a previous response. */
+  public final boolean isConditional() {
+    return ifNoneMatch != null || ifModifiedSince != null;
+  }
+
+  /**
+   * Makes the request conditional on the user having changed since a previous response. A
+   * conditional request is sent as a {@code GET} with {@code If-None-Match} and
+   * {@code If-Modified-Since} headers, as servers only answer {@code 304 Not Modified} to a
+   * {@code GET}.
+   *
+   * @param entityTag the {@code ETag} of the previous response or {@code null} for none
+   * @param lastModified the {@code Last-Modified} date of the previous response or {@code null}
+   *        for none
+   */
+  public UserInfoRequest setValidators(String entityTag, String lastModified) {
+    this.ifNoneMatch = entityTag;
+    this.ifModifiedSince = lastModified;
+    return this;
+  }
+
   /**
    * Executes request for a UserInfo, and returns the HTTP response.
    *
@@ -197,7 +248,8 @@ public class UserInfoRequest extends GenericData {
    * </pre>
    *
    * @return successful access token response, which can then be parsed directly using
-   *         {@link HttpResponse#parseAs(Class)} or some other parsing method
+   *         {@link HttpResponse#parseAs(Class)} or some other parsing method, or a
+   *         {@code 304 Not Modified} response to a conditional request
    * @throws UserInfoResponseException for an error response
    */
   public final HttpResponse executeUnparsed() throws IOException {
@@ -215,7 +267,6 @@ public class UserInfoRequest extends GenericData {
             if (interceptor != null) {
               interceptor.intercept(request);
             }
-            log.warn("Client authentication: " + clientAuthentication);
             if (clientAuthentication != null) {
               clientAuthentication.intercept(request);
             }
@@ -224,16 +275,20 @@ public class UserInfoRequest extends GenericData {
       }
     });
     // make request
-    HttpRequest request = requestFactory.buildPostRequest(serverUrl, new UrlEncodedContent(this));
+    final boolean conditional = isConditional();
+    HttpRequest request = get || conditional ? requestFactory.buildGetRequest(serverUrl)
+        : requestFactory.buildPostRequest(serverUrl, new UrlEncodedContent(this));
+    if (conditional) {
+      request.getHeaders().setIfNoneMatch(ifNoneMatch).setIfModifiedSince(ifModifiedSince);
+    }
     request.setParser(new JsonObjectParser(jsonFactory));
-    request.setThrowExceptionOnExecuteError(true);
-    log.warn("AUTHORIZATION: " + request.getHeaders().getAuthorization());
+    // error responses are turned into a UserInfoResponseException below
+    request.setThrowExceptionOnExecuteError(false);
     HttpResponse response = request.execute();
-    if (response.isSuccessStatusCode()) {
+    if (response.isSuccessStatusCode()
+        || (conditional && response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED)) {
       return response;
     }
-    log.warn("STATUS CODE: " + response.getStatusCode());
-    log.warn("STATUS MESSAGE: " + response.getStatusMessage());
     throw UserInfoResponseException.from(jsonFactory, response);
   }
 
@@ -250,11 +305,24 @@ public class UserInfoRequest extends GenericData {
    * {@link #executeUnparsed()}.
    * </p>
    *
-   * @return parsed successful access token response
+   * @return parsed successful access token response, which is empty but for its cache headers when
+   *         a conditional request found the user unchanged
    * @throws UserInfoResponseException for an error response
    */
   public UserInfoResponse execute() throws IOException {
-    return executeUnparsed().parseAs(UserInfoResponse.class);
+    final HttpResponse response = executeUnparsed();
+    final UserInfoResponse userInfo;
+    if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+      response.ignore();
+      userInfo = new UserInfoResponse();
+      userInfo.setNotModified(true);
+    } else {
+      final long parseStart = System.nanoTime();
+      userInfo = response.parseAs(UserInfoResponse.class);
+      userInfo.setParseNanos(System.nanoTime() - parseStart);
+    }
+    userInfo.readCacheHeaders(response.getHeaders());
+    return userInfo;
   }
 
   @Override
@@ -1,12 +1,21 @@
 package com.github.r351574nc3.realm.userinfo;
 
 import java.util.List;
+import java.util.Locale;
 
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.util.Key;
 import com.google.api.client.util.Preconditions;
 
 /**
+ * <p>
+ * Besides the claims of the user, the response keeps the validators and freshness lifetime the
+ * server sent in its <code>ETag</code>, <code>Last-Modified</code> and <code>Cache-Control</code>
+ * headers. A response to a conditional request that was answered with <code>304 Not Modified</code>
+ * carries no claims, only those headers.
+ * </p>
+ *
  * <p>
  * Implementation is not thread-safe.
  * </p>
@@ -32,6 +41,24 @@ public class UserInfoResponse extends GenericJson {
   @Key("username")
   protected String username;
 
+  /** Whether this is the empty response to a conditional request for an unchanged user. */
+  private boolean notModified;
+
+  /** Value of the {@code ETag} header or {@code null} for none. */
+  private String entityTag;
+
+  /** Value of the {@code Last-Modified} header or {@code null} for none. */
+  private String lastModified;
+
+  /** {@code max-age} of the {@code Cache-Control} header in seconds or {@code null} for none. */
+  private Long maxAge;
+
+  /** Whether the {@code Cache-Control} header forbids storing the response. */
+  private boolean noStore;
+
+  /** Nanoseconds spent parsing the response body. */
+  private long parseNanos;
+
   public void setEmail(final String email) {
     this.email = email;
   }
@@ -76,9 +103,89 @@ public class UserInfoResponse extends GenericJson {
     this.tenant = tenant;
   }
 
-  public Integer setTenant() {
+  public Integer getTenant() {
     return this.tenant;
   }
+
+  public boolean isNotModified() {
+    return notModified;
+  }
+
+  public String getEntityTag() {
+    return entityTag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * Returns how long the response may be used without revalidation in seconds or {@code null} if
+   * the server did not say. {@code no-cache} is reported as 0.
+   */
+  public Long getMaxAge() {
+    return maxAge;
+  }
+
+  public boolean isNoStore() {
+    return noStore;
+  }
+
+  /** Returns the nanoseconds spent parsing the response body, 0 for a response without one. */
+  public long getParseNanos() {
+    return parseNanos;
+  }
+
+  /** Whether the response can be revalidated with a conditional request. */
+  public boolean hasValidators() {
+    return entityTag != null || lastModified != null;
+  }
+
+  /**
+   * Marks this response as the answer to a conditional request for an unchanged user.
+   */
+  void setNotModified(final boolean notModified) {
+    this.notModified = notModified;
+  }
+
+  void setParseNanos(final long parseNanos) {
+    this.parseNanos = parseNanos;
+  }
+
+  /**
+   * Reads the validators and freshness lifetime from the headers of the HTTP response.
+   */
+  void readCacheHeaders(final HttpHeaders headers) {
+    this.entityTag = headers.getETag();
+    this.lastModified = headers.getLastModified();
+    final String cacheControl = headers.getCacheControl();
+    if (cacheControl == null) {
+      return;
+    }
+    for (final String directive : cacheControl.split(",")) {
+      final String value = directive.trim().toLowerCase(Locale.ROOT);
+      if (value.equals("no-store")) {
+        noStore = true;
+      } else if (value.equals("no-cache")) {
+        maxAge = 0L;
+      } else if (value.startsWith("max-age=") && maxAge == null) {
+        try {
+          maxAge = Math.max(0L, Long.parseLong(value.substring("max-age=".length()).replace("\"", "")));
+        } catch (NumberFormatException e) {
+          // an invalid max-age makes the response stale, RFC 7234 section 4.2.1
+          maxAge = 0L;
+        }
+      }
+    }
+  }
+
+  /**
+   * @deprecated misnamed accessor, use {@link #getTenant()}
+   */
+  @Deprecated
+  public Integer setTenant() {
+    return getTenant();
+  }
   
   @Override
   public UserInfoResponse clone() {
@@ -0,0 +1,83 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class CacheSimulatorTests extends ESTestCase {
+
+	public void testClockReusesSlotsOfRemovedEntries() {
+		final CacheSimulator.ClockPolicy clock = new CacheSimulator.ClockPolicy(2);
+		clock.put(1, new CacheSimulator.CachedUser(1, Long.MAX_VALUE));
+		clock.put(2, new CacheSimulator.CachedUser(2, Long.MAX_VALUE));
+		// evicts 1 after a full sweep, which leaves 2 unreferenced
+		clock.put(3, new CacheSimulator.CachedUser(3, Long.MAX_VALUE));
+		assertNull(clock.get(1));
+		clock.remove(3);
+		assertEquals(1, clock.size());
+
+		// takes the slot 3 freed rather than evicting 2, the next entry under the hand
+		clock.put(4, new CacheSimulator.CachedUser(4, Long.MAX_VALUE));
+		assertEquals(2, clock.size());
+		assertNotNull(clock.get(2));
+		assertNotNull(clock.get(4));
+	}
+
+	public void testUnknownOutcomeIsReportedAsCorrupt() throws IOException {
+		final ByteBuffer record = record(AuthAuditTrail.Outcome.SUCCESS.ordinal());
+		final ByteBuffer corrupt = record(randomFrom(AuthAuditTrail.OUTCOMES.length, 127, -1));
+		final Path trace = trace(record, corrupt);
+		final IOException e = expectThrows(IOException.class, () -> CacheSimulator.replay(trace, Collections.emptyList()));
+		assertTrue(e.getMessage(), e.getMessage().contains("corrupt, event 1 has unknown outcome"));
+	}
+
+	public void testTruncatedEventIsReportedAsCorrupt() throws IOException {
+		final ByteBuffer record = record(AuthAuditTrail.Outcome.SUCCESS.ordinal());
+		record.limit(randomIntBetween(Long.BYTES + 1, AuthAuditTrail.TRACE_RECORD_BYTES - 1));
+		final Path trace = trace(record);
+		final IOException e = expectThrows(IOException.class, () -> CacheSimulator.replay(trace, Collections.emptyList()));
+		assertTrue(e.getMessage(), e.getMessage().contains("corrupt, event 0 is truncated"));
+	}
+
+	private static ByteBuffer record(final int outcome) {
+		final ByteBuffer record = ByteBuffer.allocate(AuthAuditTrail.TRACE_RECORD_BYTES);
+		record.putLong(System.currentTimeMillis()).putLong(1).putLong(2).put((byte) outcome).putShort((short) 200);
+		record.flip();
+		return record;
+	}
+
+	private Path trace(final ByteBuffer... records) throws IOException {
+		final ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES + records.length * AuthAuditTrail.TRACE_RECORD_BYTES);
+		bytes.putLong(AuthAuditTrail.TRACE_MAGIC);
+		for (final ByteBuffer record : records) {
+			bytes.put(record);
+		}
+		final Path trace = createTempFile();
+		Files.write(trace, Arrays.copyOf(bytes.array(), bytes.position()));
+		return trace;
+	}
+}
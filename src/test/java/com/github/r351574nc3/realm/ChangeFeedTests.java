@@ -0,0 +1,110 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.test.ESTestCase;
+
+import com.github.r351574nc3.realm.userinfo.ChangeEvent;
+import com.github.r351574nc3.realm.userinfo.ChangeFeedResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChangeFeedTests extends ESTestCase {
+
+	private final List<String> changed = new ArrayList<>();
+	private final AtomicInteger allChanged = new AtomicInteger();
+
+	public void testOnlyCompleteAppendedLinesAreApplied() throws Exception {
+		final Path file = createTempDir().resolve("changes");
+		Files.write(file, new byte[0]);
+		final ChangeFeed feed = feed(file, null);
+
+		append(file, "{\"users\": [\"alice\"");
+		feed.readAppended();
+		assertEquals(Collections.emptyList(), changed);
+
+		append(file, "]}\n# a comment\n\nnot json\n{\"users\": [\"bob\", \"carol\"]}\n{\"all\"");
+		feed.readAppended();
+		assertEquals(Arrays.asList("alice", "bob", "carol"), changed);
+		assertEquals(0, allChanged.get());
+		assertEquals(1L, feed.stats().get("malformed"));
+
+		append(file, ": true}\n");
+		feed.readAppended();
+		assertEquals(1, allChanged.get());
+		assertEquals(3L, feed.stats().get("events"));
+
+		// nothing new is applied again
+		feed.readAppended();
+		assertEquals(3, changed.size());
+		assertEquals(1, allChanged.get());
+	}
+
+	public void testReplacedFileIsReadFromItsStart() throws Exception {
+		final Path file = createTempDir().resolve("changes");
+		Files.write(file, new byte[0]);
+		final ChangeFeed feed = feed(file, null);
+		append(file, "{\"users\": [\"alice\"]}\n{\"users\": [\"bob\"]}\n");
+		feed.readAppended();
+		assertEquals(Arrays.asList("alice", "bob"), changed);
+
+		// a shorter file was replaced rather than appended to
+		Files.write(file, "{\"users\": [\"dave\"]}\n".getBytes(StandardCharsets.UTF_8));
+		feed.readAppended();
+		assertEquals(Arrays.asList("alice", "bob", "dave"), changed);
+	}
+
+	public void testResponseWithoutCursorKeepsThePreviousOne() throws Exception {
+		final List<String> cursors = new ArrayList<>();
+		final List<String> answers = new ArrayList<>(Arrays.asList("c1", null, "c2"));
+		final ChangeFeed feed = feed(null, cursor -> {
+			cursors.add(cursor);
+			final ChangeEvent event = new ChangeEvent();
+			event.setUsers(Collections.singletonList("user" + cursors.size()));
+			final ChangeFeedResponse response = new ChangeFeedResponse();
+			response.setCursor(answers.remove(0));
+			response.setEvents(Collections.singletonList(event));
+			return response;
+		});
+		feed.poll();
+		feed.poll();
+		feed.poll();
+		assertEquals(Arrays.asList(null, "c1", "c1"), cursors);
+		assertEquals(Arrays.asList("user1", "user2", "user3"), changed);
+		assertEquals("c2", feed.stats().get("cursor"));
+	}
+
+	private ChangeFeed feed(final Path file, final ChangeFeed.Poller poller) {
+		return new ChangeFeed(file, poller, changed::add, allChanged::incrementAndGet, Runnable::run);
+	}
+
+	private static void append(final Path file, final String text) throws IOException {
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+	}
+}
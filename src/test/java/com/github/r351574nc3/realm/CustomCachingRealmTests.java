@@ -0,0 +1,225 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.network.InetAddresses;
+import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.elasticsearch.xpack.security.authc.support.UsernamePasswordToken;
+import org.elasticsearch.xpack.security.user.User;
+
+import com.github.r351574nc3.realm.userinfo.UserInfoResponse;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CustomCachingRealmTests extends ESTestCase {
+
+	private ThreadPool threadPool;
+	private ResourceWatcherService watcherService;
+	private ThreadContext threadContext;
+	private final List<CustomRealm> realms = new ArrayList<>();
+
+	@Before
+	public void setUpWatcher() {
+		threadPool = new TestThreadPool(getTestName());
+		watcherService = new ResourceWatcherService(Settings.EMPTY, threadPool);
+	}
+
+	@After
+	public void stopWatcher() throws InterruptedException {
+		for (final CustomRealm realm : realms) {
+			realm.close();
+		}
+		terminate(threadPool);
+	}
+
+	/**
+	 * Authentications fill the cache while the user changes at the oauth server and is expired after every change. Once
+	 * the dust settles the realm must serve the last version of the user, which fails if a fill that read an older
+	 * version before an invalidation was stored after it.
+	 */
+	public void testInvalidationRacingFills() throws Exception {
+		final AtomicInteger version = new AtomicInteger();
+		final CustomCachingRealm realm = new VersionedRealm(config(Settings.EMPTY), version);
+		final int readers = randomIntBetween(2, 6);
+		final int invalidations = randomIntBetween(200, 1000);
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < readers; i++) {
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+					while (done.get() == false) {
+						assertNotNull(authenticate(realm));
+					}
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (int i = 0; i < invalidations; i++) {
+			version.incrementAndGet();
+			if (randomBoolean()) {
+				realm.expire("alice");
+			} else {
+				realm.expireAll();
+			}
+		}
+		done.set(true);
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(failure.get());
+
+		assertEquals("v" + version.get(), authenticate(realm).email());
+	}
+
+	public void testTokenOfAnotherUserIsNotCached() throws Exception {
+		final AtomicInteger version = new AtomicInteger();
+		final CustomCachingRealm realm = new VersionedRealm(config(Settings.EMPTY), version);
+		final PlainActionFuture<User> future = new PlainActionFuture<>();
+		realm.authenticate(new UsernamePasswordToken("mallory", new SecureString("alice-token".toCharArray())), future);
+		assertNull(future.get());
+		assertEquals("v0", authenticate(realm).email());
+	}
+
+	/**
+	 * A cached user presenting a new valid token, as after a token refresh, is validated by the oauth server rather than
+	 * rejected, and the new token replaces the cached one
+	 */
+	public void testNewTokenOfCachedUserIsValidated() throws Exception {
+		final AtomicInteger version = new AtomicInteger();
+		final VersionedRealm realm = new VersionedRealm(config(Settings.EMPTY), version);
+		assertEquals("v0", authenticate(realm, "alice", "alice-token", null).email());
+		assertEquals(1, realm.requests.get());
+
+		version.incrementAndGet();
+		assertEquals("v1", authenticate(realm, "alice", "refreshed-alice-token", null).email());
+		assertEquals(2, realm.requests.get());
+		assertEquals("v1", authenticate(realm, "alice", "refreshed-alice-token", null).email());
+		assertEquals(2, realm.requests.get());
+		assertEquals(0, realm.failures.remainingPenaltyNanos(realm.failures.principalKey("alice")));
+	}
+
+	/**
+	 * Failed guesses of a service account secret put their source into the penalty box, which then refuses even the
+	 * right secret from that source, while failures recorded against the name of the account never lock it out
+	 */
+	public void testServiceAccountGuessesArePenalizedBySource() throws Exception {
+		final RealmConfig config = config(Settings.builder().put(ServiceAccounts.FILE_SETTING, "service_accounts").build());
+		final Path configDir = config.env().configFile();
+		Files.createDirectories(configDir);
+		Files.write(configDir.resolve("service_accounts"), Collections.singletonList("kibana:salt:"
+				+ MessageDigests.toHexString(CredentialDigests.sha256("salt".getBytes(StandardCharsets.UTF_8), "secret"))
+				+ ":kibana_system"), StandardCharsets.UTF_8);
+		final CustomCachingRealm realm = new VersionedRealm(config, new AtomicInteger());
+		for (int i = 0; i < 10; i++) {
+			realm.failures.recordFailure(realm.failures.principalKey("kibana"));
+		}
+		assertEquals("kibana", authenticate(realm, "kibana", "secret", "10.0.0.1").principal());
+
+		for (int i = 0; i < 5; i++) {
+			assertNull(authenticate(realm, "kibana", "guess" + i, "10.0.0.1"));
+		}
+		assertNull(authenticate(realm, "kibana", "secret", "10.0.0.1"));
+		assertEquals("kibana", authenticate(realm, "kibana", "secret", "10.0.0.2").principal());
+	}
+
+	private User authenticate(final CustomCachingRealm realm) throws Exception {
+		return authenticate(realm, "alice", "alice-token", null);
+	}
+
+	private User authenticate(final CustomCachingRealm realm, final String principal, final String credentials,
+			final String source) throws Exception {
+		// a fresh context per authentication, so the result recorded in the previous one is not reused
+		try (ThreadContext.StoredContext ignore = threadContext.stashContext()) {
+			if (source != null) {
+				threadContext.putTransient(CustomRealm.REST_REMOTE_ADDRESS_TRANSIENT,
+						new InetSocketAddress(InetAddresses.forString(source), 9200));
+			}
+			final PlainActionFuture<User> future = new PlainActionFuture<>();
+			realm.authenticate(new UsernamePasswordToken(principal, new SecureString(credentials.toCharArray())), future);
+			return future.get();
+		}
+	}
+
+	private RealmConfig config(final Settings realmSettings) {
+		final Settings globalSettings = Settings.builder().put("path.home", createTempDir()).build();
+		threadContext = new ThreadContext(globalSettings);
+		return new RealmConfig("test", Settings.builder().put("audit.enabled", false).put(realmSettings).build(),
+				globalSettings, new Environment(globalSettings), threadContext);
+	}
+
+	/**
+	 * A realm whose oauth server knows the tokens of alice and answers with the current version of her as her email
+	 */
+	private class VersionedRealm extends CustomCachingRealm {
+		private final AtomicInteger version;
+		private final AtomicInteger requests = new AtomicInteger();
+
+		VersionedRealm(RealmConfig config, AtomicInteger version) {
+			super(config, watcherService, new FailureTracker(5, 1000, 300000, 1024), new RetryBudget(0, 0, 0, 1));
+			this.version = version;
+			realms.add(this);
+		}
+
+		@Override
+		protected UserInfoResponse requestUserInfo(String accessToken, String entityTag, String lastModified,
+				AuthTimings.Trace trace) {
+			requests.incrementAndGet();
+			final UserInfoResponse userInfo = new UserInfoResponse();
+			userInfo.setUsername("alice");
+			userInfo.setEmail("v" + version.get());
+			if (randomBoolean()) {
+				// widen the window between reading the user and caching it
+				Thread.yield();
+			}
+			return userInfo;
+		}
+	}
+}
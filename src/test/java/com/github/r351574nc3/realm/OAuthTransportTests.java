@@ -0,0 +1,187 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.google.api.client.http.GenericUrl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests over an {@link OAuthTransport} to a stub oauth server, which holds every request until it is released
+ * and records the connections the requests arrived on
+ */
+@SuppressForbidden(reason = "stub oauth server")
+public class OAuthTransportTests extends ESTestCase {
+
+	private ThreadPool threadPool;
+	private HttpServer server;
+	private final List<Thread> clients = new ArrayList<>();
+	private final Set<InetSocketAddress> connections = ConcurrentCollections.newConcurrentSet();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private volatile CountDownLatch release = new CountDownLatch(0);
+
+	@Before
+	public void startServer() throws IOException {
+		threadPool = new TestThreadPool(getTestName());
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/oauth2/userinfo", this::handle);
+		// held requests must not hold up the others, so each one is handled on a thread of its own
+		server.setExecutor(threadPool.generic());
+		server.start();
+	}
+
+	@After
+	public void stopServer() throws InterruptedException {
+		release.countDown();
+		for (final Thread client : clients) {
+			client.join();
+		}
+		server.stop(0);
+		terminate(threadPool);
+	}
+
+	public void testNetTransport() throws Exception {
+		final OAuthTransport transport = OAuthTransport.fromSettings(Settings.EMPTY);
+		assertEquals("net", transport.stats().get("type"));
+		assertFalse(transport.stats().containsKey("connections"));
+		for (int i = 0; i < randomIntBetween(1, 5); i++) {
+			assertEquals("ok", get(transport).get(10, TimeUnit.SECONDS));
+		}
+	}
+
+	public void testPooledTransportBoundsAndReusesConnections() throws Exception {
+		final int maxConnections = randomIntBetween(1, 4);
+		final OAuthTransport transport = pooled(maxConnections, "10s");
+		assertEquals("pooled", transport.stats().get("type"));
+		assertEquals(maxConnections, transport.stats().get("max_connections"));
+
+		// every pooled connection is held by a request while the others wait for one
+		release = new CountDownLatch(1);
+		final List<CompletableFuture<String>> responses = new ArrayList<>();
+		for (int i = 0; i < randomIntBetween(maxConnections + 1, 3 * maxConnections); i++) {
+			responses.add(get(transport));
+		}
+		assertBusy(() -> assertEquals(maxConnections, inFlight.get()));
+		release.countDown();
+		for (final CompletableFuture<String> response : responses) {
+			assertEquals("ok", response.get(10, TimeUnit.SECONDS));
+		}
+
+		assertEquals(maxConnections, maxInFlight.get());
+		assertEquals(maxConnections, connections.size());
+		assertEquals(maxConnections, transport.stats().get("connections"));
+	}
+
+	public void testPooledTransportTimesOutWaitingForConnection() throws Exception {
+		final OAuthTransport transport = pooled(1, "50ms");
+		release = new CountDownLatch(1);
+		final CompletableFuture<String> held = get(transport);
+		assertBusy(() -> assertEquals(1, inFlight.get()));
+
+		expectThrows(IOException.class, () -> request(transport));
+		release.countDown();
+		assertEquals("ok", held.get(10, TimeUnit.SECONDS));
+		assertEquals("ok", request(transport));
+	}
+
+	public void testInvalidSettings() {
+		expectThrows(IllegalArgumentException.class, () -> OAuthTransport.fromSettings(Settings.builder()
+				.put(OAuthTransport.TYPE_SETTING, "unknown")
+				.build()));
+		expectThrows(IllegalArgumentException.class, () -> OAuthTransport.fromSettings(Settings.builder()
+				.put(OAuthTransport.TYPE_SETTING, "pooled")
+				.put(OAuthTransport.MAX_CONNECTIONS_SETTING, 0)
+				.build()));
+	}
+
+	private static OAuthTransport pooled(final int maxConnections, final String acquireTimeout) {
+		return OAuthTransport.fromSettings(Settings.builder()
+				.put(OAuthTransport.TYPE_SETTING, "pooled")
+				.put(OAuthTransport.MAX_CONNECTIONS_SETTING, maxConnections)
+				.put(OAuthTransport.ACQUIRE_TIMEOUT_SETTING, acquireTimeout)
+				.build());
+	}
+
+	/**
+	 * Sends a request on a thread of its own, so that it can wait for a pooled connection
+	 */
+	private CompletableFuture<String> get(final OAuthTransport transport) {
+		final CompletableFuture<String> result = new CompletableFuture<>();
+		final Thread client = new Thread(() -> {
+			try {
+				result.complete(request(transport));
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		clients.add(client);
+		client.start();
+		return result;
+	}
+
+	private String request(final OAuthTransport transport) throws IOException {
+		final GenericUrl url = new GenericUrl("http://" + server.getAddress().getHostString() + ":"
+				+ server.getAddress().getPort() + "/oauth2/userinfo");
+		// reading the response to its end hands the connection back to the pool
+		return transport.transport().createRequestFactory().buildGetRequest(url).execute().parseAsString();
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		connections.add(exchange.getRemoteAddress());
+		final int requests = inFlight.incrementAndGet();
+		maxInFlight.accumulateAndGet(requests, Math::max);
+		try {
+			release.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		inFlight.decrementAndGet();
+		final byte[] bytes = "ok".getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
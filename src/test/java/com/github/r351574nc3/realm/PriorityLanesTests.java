@@ -0,0 +1,216 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PriorityLanesTests extends ESTestCase {
+
+	private static final long MAX_WAIT = TimeUnit.SECONDS.toNanos(5);
+
+	private ThreadPool threadPool;
+	private ThreadContext threadContext;
+
+	@Before
+	public void startThreadPool() {
+		threadPool = new TestThreadPool(getTestName());
+		threadContext = threadPool.getThreadContext();
+	}
+
+	@After
+	public void stopThreadPool() throws InterruptedException {
+		terminate(threadPool);
+	}
+
+	public void testQueuedAuthenticationResumesInItsContext() throws Exception {
+		final PriorityLanes.Lane lane = lane("interactive", 10, 1, 1, MAX_WAIT);
+		final PriorityLanes lanes = lanes(1, lane);
+		admitted(lanes, lane);
+
+		final CompletableFuture<String> queued = new CompletableFuture<>();
+		try (ThreadContext.StoredContext ignore = threadContext.stashContext()) {
+			threadContext.putHeader("User-Agent", "kibana");
+			// returns at once, the slot is taken
+			lanes.enter(lane, ActionListener.wrap(
+					admitted -> queued.complete(threadContext.getHeader("User-Agent")), queued::completeExceptionally));
+		}
+		assertFalse(queued.isDone());
+		assertEquals(1, stats(lanes, "interactive").get("waiting"));
+
+		lanes.exit(lane);
+		assertEquals("kibana", queued.get(10, TimeUnit.SECONDS));
+		assertEquals(1, stats(lanes, "interactive").get("in_flight"));
+		assertEquals(2L, stats(lanes, "interactive").get("admitted"));
+	}
+
+	public void testFreedSlotGoesToTheHighestPriority() throws Exception {
+		final PriorityLanes.Lane interactive = lane("interactive", 10, 2, 4, MAX_WAIT);
+		final PriorityLanes.Lane background = lane("background", 0, 2, 4, MAX_WAIT);
+		final PriorityLanes lanes = lanes(2, interactive, background);
+		admitted(lanes, background);
+		admitted(lanes, background);
+
+		// the pool is shared, so the background lane holding it keeps interactive authentications waiting
+		final CompletableFuture<Void> waiting = enter(lanes, interactive);
+		assertEquals(1, stats(lanes, "interactive").get("waiting"));
+		// and background authentications are shed while they wait
+		final CompletableFuture<Void> shed = enter(lanes, background);
+		assertTrue(shed.isCompletedExceptionally());
+
+		lanes.exit(background);
+		waiting.get(10, TimeUnit.SECONDS);
+		assertEquals(1, stats(lanes, "background").get("in_flight"));
+		assertEquals(1, stats(lanes, "interactive").get("in_flight"));
+		assertEquals(1L, stats(lanes, "background").get("shed"));
+	}
+
+	public void testLaneShareBoundsItsRequests() throws Exception {
+		final PriorityLanes.Lane interactive = lane("interactive", 10, 4, 4, MAX_WAIT);
+		final PriorityLanes.Lane background = lane("background", 0, 1, 0, MAX_WAIT);
+		final PriorityLanes lanes = lanes(4, interactive, background);
+		admitted(lanes, background);
+		// the pool has free slots but the background lane holds its whole share and has no queue
+		assertTrue(enter(lanes, background).isCompletedExceptionally());
+		for (int i = 0; i < 3; i++) {
+			admitted(lanes, interactive);
+		}
+		enter(lanes, interactive);
+		assertEquals(1, stats(lanes, "interactive").get("waiting"));
+	}
+
+	public void testAuthenticationWaitingTooLongIsShed() throws Exception {
+		final PriorityLanes.Lane lane = lane("interactive", 0, 1, 4, 0);
+		final PriorityLanes lanes = lanes(1, lane);
+		admitted(lanes, lane);
+		final CompletableFuture<Void> waiting = enter(lanes, lane);
+
+		lanes.exit(lane);
+		final ExecutionException e = expectThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof EsRejectedExecutionException);
+		assertEquals(0, stats(lanes, "interactive").get("in_flight"));
+	}
+
+	public void testWaiterIsShedWithinMaxWaitWhileEverySlotStaysTaken() throws Exception {
+		final long maxWait = TimeUnit.MILLISECONDS.toNanos(randomIntBetween(10, 200));
+		final PriorityLanes.Lane lane = lane("interactive", 0, 2, 4, maxWait);
+		final PriorityLanes lanes = lanes(2, lane);
+		admitted(lanes, lane);
+		admitted(lanes, lane);
+
+		// no request enters or returns its slot while the waiter is queued
+		final long queuedAt = System.nanoTime();
+		final CompletableFuture<Void> waiting = enter(lanes, lane);
+		final ExecutionException e = expectThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+		final long waited = System.nanoTime() - queuedAt;
+		assertTrue(e.getCause() instanceof EsRejectedExecutionException);
+		assertTrue("waited " + waited + "ns", waited >= maxWait);
+		assertTrue("waited " + waited + "ns", waited < maxWait + TimeUnit.SECONDS.toNanos(5));
+		assertEquals(0, stats(lanes, "interactive").get("waiting"));
+		assertEquals(2, stats(lanes, "interactive").get("in_flight"));
+		assertEquals(1L, stats(lanes, "interactive").get("shed"));
+	}
+
+	public void testQueueSizeIsBounded() throws Exception {
+		final PriorityLanes.Lane lane = lane("interactive", 0, 1, 2, MAX_WAIT);
+		final PriorityLanes lanes = lanes(1, lane);
+		admitted(lanes, lane);
+		enter(lanes, lane);
+		enter(lanes, lane);
+		assertEquals(2, stats(lanes, "interactive").get("waiting"));
+		assertTrue(enter(lanes, lane).isCompletedExceptionally());
+	}
+
+	public void testRequestsWithoutLanesAreSentFromTheLanes() throws Exception {
+		final PriorityLanes lanes = PriorityLanes.fromSettings("test", Settings.EMPTY, threadContext);
+		try {
+			assertNull(lanes.classify("alice", threadContext));
+			final CompletableFuture<Thread> admitted = new CompletableFuture<>();
+			lanes.enter(null, ActionListener.wrap(ignore -> admitted.complete(Thread.currentThread()),
+					admitted::completeExceptionally));
+			assertNotSame(Thread.currentThread(), admitted.get(10, TimeUnit.SECONDS));
+		} finally {
+			lanes.close();
+		}
+	}
+
+	public void testFromSettings() {
+		final PriorityLanes lanes = PriorityLanes.fromSettings("test", Settings.builder()
+				.put("lanes.interactive.priority", 10)
+				.put("lanes.interactive.concurrency", 16)
+				.put("lanes.background.concurrency", 4)
+				.putArray("lanes.background.principals", "beats_*")
+				.put("default_lane", "interactive")
+				.build(), threadContext);
+		try {
+			assertEquals("background", lanes.classify("beats_system", threadContext).name());
+			assertEquals("interactive", lanes.classify("alice", threadContext).name());
+			assertEquals(16, lanes.stats().get("concurrency"));
+		} finally {
+			lanes.close();
+		}
+	}
+
+	private PriorityLanes.Lane lane(final String name, final int priority, final int concurrency, final int queueSize,
+			final long maxWaitNanos) {
+		return new PriorityLanes.Lane(name, priority, concurrency, queueSize, maxWaitNanos, new String[0],
+				Collections.emptyMap());
+	}
+
+	/**
+	 * Lanes in order of priority, admitting authentications on the generic thread pool
+	 */
+	private PriorityLanes lanes(final int concurrency, final PriorityLanes.Lane... lanes) {
+		return new PriorityLanes("test", lanes, lanes[0], concurrency, threadContext, threadPool.generic(),
+				threadPool.scheduler());
+	}
+
+	/**
+	 * Enters a lane that has a free slot
+	 */
+	private static void admitted(final PriorityLanes lanes, final PriorityLanes.Lane lane) throws Exception {
+		enter(lanes, lane).get(10, TimeUnit.SECONDS);
+	}
+
+	private static CompletableFuture<Void> enter(final PriorityLanes lanes, final PriorityLanes.Lane lane) {
+		final CompletableFuture<Void> admitted = new CompletableFuture<>();
+		lanes.enter(lane, ActionListener.wrap(admitted::complete, admitted::completeExceptionally));
+		return admitted;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> stats(final PriorityLanes lanes, final String lane) {
+		return (Map<String, Object>) lanes.stats().get(lane);
+	}
+}
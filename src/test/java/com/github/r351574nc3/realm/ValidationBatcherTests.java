@@ -0,0 +1,281 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.github.r351574nc3.realm;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.github.r351574nc3.realm.userinfo.BulkValidationRequest;
+import com.github.r351574nc3.realm.userinfo.IntrospectionResponse;
+import com.github.r351574nc3.realm.userinfo.UserInfoResponseException;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link ValidationBatcher} against a stub of the bulk validation endpoint of the oauth server, which answers
+ * every token as active for the user of the same name except those starting with <code>revoked</code>
+ */
+@SuppressForbidden(reason = "stub oauth server")
+public class ValidationBatcherTests extends ESTestCase {
+
+	private ThreadPool threadPool;
+	private final List<Thread> senders = new ArrayList<>();
+	private HttpServer server;
+	private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<>());
+	private volatile int status = 200;
+	private volatile CountDownLatch received = new CountDownLatch(0);
+	private volatile CountDownLatch release = new CountDownLatch(0);
+
+	@Before
+	public void startServer() throws IOException {
+		threadPool = new TestThreadPool(getTestName());
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/oauth2/introspect/bulk", this::handle);
+		server.start();
+	}
+
+	@After
+	public void stopServer() throws InterruptedException {
+		release.countDown();
+		for (final Thread sender : senders) {
+			sender.interrupt();
+			sender.join();
+		}
+		server.stop(0);
+		terminate(threadPool);
+	}
+
+	public void testQueuedTokensAreBatched() throws Exception {
+		final int maxSize = randomIntBetween(2, 8);
+		final ValidationBatcher batcher = start(maxSize, 1);
+
+		// the first batch holds up the only sender until every other token is queued behind it
+		received = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+		final CompletableFuture<IntrospectionResponse> first = validate(batcher, "user0");
+		assertTrue(received.await(10, TimeUnit.SECONDS));
+		final int queued = randomIntBetween(maxSize + 1, 3 * maxSize);
+		final List<String> tokens = new ArrayList<>();
+		final List<CompletableFuture<IntrospectionResponse>> results = new ArrayList<>();
+		for (int i = 1; i <= queued; i++) {
+			final String token = (randomBoolean() ? "revoked" : "user") + i;
+			tokens.add(token);
+			results.add(validate(batcher, token));
+		}
+		assertBusy(() -> assertEquals(queued, batcher.stats().get("queued")));
+		release.countDown();
+
+		assertEquals("user0", first.get().getUsername());
+		for (int i = 0; i < queued; i++) {
+			final IntrospectionResponse result = results.get(i).get();
+			if (tokens.get(i).startsWith("revoked")) {
+				assertFalse(result.isActive());
+			} else {
+				assertTrue(result.isActive());
+				assertEquals(tokens.get(i), result.getUsername());
+			}
+		}
+		// the queued tokens went out in full batches
+		assertEquals(1 + (queued + maxSize - 1) / maxSize, requests.size());
+		assertEquals(Collections.singletonList("user0"), requests.get(0));
+		final List<String> sent = new ArrayList<>();
+		for (int i = 1; i < requests.size(); i++) {
+			assertEquals(Math.min(maxSize, queued - sent.size()), requests.get(i).size());
+			sent.addAll(requests.get(i));
+		}
+		assertEquals(new HashSet<>(tokens), new HashSet<>(sent));
+		assertEquals(queued, sent.size());
+		assertEquals((long) requests.size(), batcher.stats().get("batches"));
+		assertEquals((long) queued + 1, batcher.stats().get("tokens"));
+	}
+
+	public void testFailedBatchFailsEveryToken() throws Exception {
+		final ValidationBatcher batcher = start(randomIntBetween(1, 8), randomIntBetween(1, 3));
+		status = 503;
+		final List<CompletableFuture<IntrospectionResponse>> results = new ArrayList<>();
+		for (int i = 0; i < randomIntBetween(1, 20); i++) {
+			results.add(validate(batcher, "user" + i));
+		}
+		for (final CompletableFuture<IntrospectionResponse> result : results) {
+			final ExecutionException e = expectThrows(ExecutionException.class, result::get);
+			assertEquals(503, ((UserInfoResponseException) e.getCause()).getStatusCode());
+		}
+
+		// the senders survive the failure
+		status = 200;
+		assertEquals("user", validate(batcher, "user").get().getUsername());
+	}
+
+	public void testMissingResultsFailTheBatch() throws Exception {
+		final ValidationBatcher batcher = new ValidationBatcher(tokens -> {
+			final List<IntrospectionResponse> results = new ArrayList<>();
+			for (final String token : tokens.subList(0, tokens.size() - 1)) {
+				results.add(active(token));
+			}
+			return results;
+		}, Settings.EMPTY, threadPool.getThreadContext(), threadPool.scheduler());
+		startSender(batcher);
+
+		final ExecutionException e = expectThrows(ExecutionException.class, validate(batcher, "user")::get);
+		assertTrue(e.getCause() instanceof IllegalStateException);
+	}
+
+	public void testHungBatchTimesOut() throws Exception {
+		final CountDownLatch hung = new CountDownLatch(1);
+		final ValidationBatcher batcher = new ValidationBatcher(tokens -> {
+			hung.await();
+			return Collections.singletonList(active(tokens.get(0)));
+		}, Settings.builder().put(ValidationBatcher.TIMEOUT_SETTING, "50ms").build(), threadPool.getThreadContext(),
+				threadPool.scheduler());
+		startSender(batcher);
+
+		final CompletableFuture<String> context = new CompletableFuture<>();
+		try (ThreadContext.StoredContext ignore = threadPool.getThreadContext().stashContext()) {
+			threadPool.getThreadContext().putHeader("User-Agent", "kibana");
+			batcher.validate("user", ActionListener.wrap(response -> context.completeExceptionally(new AssertionError()),
+					e -> {
+						assertTrue(e instanceof ElasticsearchTimeoutException);
+						context.complete(threadPool.getThreadContext().getHeader("User-Agent"));
+					}));
+		}
+		// the failure is delivered in the context of the authentication while the batch is still hanging
+		assertEquals("kibana", context.get(10, TimeUnit.SECONDS));
+		assertEquals(1L, batcher.stats().get("timeouts"));
+		hung.countDown();
+	}
+
+	public void testCloseFailsQueuedTokens() throws Exception {
+		final ValidationBatcher batcher = new ValidationBatcher(tokens -> {
+			throw new AssertionError("no sender is running");
+		}, Settings.EMPTY, threadPool.getThreadContext(), threadPool.scheduler());
+		final CompletableFuture<IntrospectionResponse> queued = validate(batcher, "user");
+		assertEquals(1, batcher.stats().get("queued"));
+
+		batcher.close();
+		ExecutionException e = expectThrows(ExecutionException.class, () -> queued.get(10, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof EsRejectedExecutionException);
+		e = expectThrows(ExecutionException.class, () -> validate(batcher, "user").get(10, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof EsRejectedExecutionException);
+	}
+
+	private ValidationBatcher start(final int maxSize, final int concurrency) {
+		final GenericUrl url = new GenericUrl("http://" + server.getAddress().getHostString() + ":"
+				+ server.getAddress().getPort() + "/oauth2/introspect/bulk");
+		final ValidationBatcher batcher = new ValidationBatcher(tokens -> new BulkValidationRequest(
+				new NetHttpTransport(), new JacksonFactory(), url, tokens).execute().getResults(), Settings.builder()
+				.put(ValidationBatcher.MAX_SIZE_SETTING, maxSize)
+				.put(ValidationBatcher.MAX_WAIT_SETTING, "0ms")
+				.put(ValidationBatcher.CONCURRENCY_SETTING, concurrency)
+				.build(), threadPool.getThreadContext(), threadPool.scheduler());
+		for (int i = 0; i < concurrency; i++) {
+			startSender(batcher);
+		}
+		return batcher;
+	}
+
+	private void startSender(final ValidationBatcher batcher) {
+		final Thread sender = new Thread(batcher::run);
+		senders.add(sender);
+		sender.start();
+	}
+
+	private static CompletableFuture<IntrospectionResponse> validate(final ValidationBatcher batcher,
+			final String token) {
+		final CompletableFuture<IntrospectionResponse> result = new CompletableFuture<>();
+		batcher.validate(token, ActionListener.wrap(result::complete, result::completeExceptionally));
+		return result;
+	}
+
+	private static IntrospectionResponse active(final String token) {
+		final IntrospectionResponse response = new IntrospectionResponse();
+		response.setActive(true);
+		response.setUsername(token);
+		return response;
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		final List<String> tokens = new ArrayList<>();
+		for (final String parameter : read(exchange.getRequestBody()).split("&")) {
+			if (parameter.startsWith("token=")) {
+				tokens.add(URLDecoder.decode(parameter.substring("token=".length()), "UTF-8"));
+			}
+		}
+		requests.add(tokens);
+		received.countDown();
+		try {
+			release.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final StringBuilder body = new StringBuilder("{\"results\":[");
+		for (int i = 0; i < tokens.size(); i++) {
+			body.append(i == 0 ? "" : ",").append(tokens.get(i).startsWith("revoked") ? "{\"active\":false}"
+					: "{\"active\":true,\"username\":\"" + tokens.get(i) + "\"}");
+		}
+		final byte[] bytes = (status == 200 ? body.append("]}").toString() : "{\"error\":\"unavailable\"}")
+				.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String read(final InputStream in) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1024];
+		for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+			bytes.write(buffer, 0, read);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+}